@@ -12,9 +12,17 @@ plugins {
 
 dependencies {
     implementation("org.springframework.boot:spring-boot-starter-jdbc")
+    // CopyManager for the binary COPY import, the driver itself is provided by the runner
+    compileOnly("org.postgresql:postgresql")
 
     // You may add any utility library you want to use, such as guava.
     // ORM libraries are prohibited in this project.
+
+    testImplementation("org.springframework.boot:spring-boot-starter-test")
+}
+
+tasks.test {
+    useJUnitPlatform()
 }
 
 tasks.withType<BootRun> {
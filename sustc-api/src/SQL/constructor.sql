@@ -18,6 +18,10 @@ CREATE TABLE auth_info (
     wechat VARCHAR(255)
 );
 
+-- Authentication looks users up by qq or wechat when no mid is given
+CREATE INDEX auth_info_qq_idx ON auth_info (qq);
+CREATE INDEX auth_info_wechat_idx ON auth_info (wechat);
+
 
 -- Video Table
 CREATE TABLE videos (
@@ -33,6 +37,12 @@ CREATE TABLE videos (
     reviewer BIGINT REFERENCES users(mid)
 );
 
+-- The TRGM search mode matches keywords as substrings through trigram indexes
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX videos_title_trgm_idx ON videos USING gin (title gin_trgm_ops);
+CREATE INDEX videos_description_trgm_idx ON videos USING gin (description gin_trgm_ops);
+CREATE INDEX users_name_trgm_idx ON users USING gin (name gin_trgm_ops);
+
 -- UserVideoInteraction Table
 CREATE TABLE user_video_interaction (
     mid BIGINT REFERENCES users(mid),
@@ -95,6 +105,17 @@ CREATE TABLE video_aggregates (
     avg_finish FLOAT
 );
 
+-- most co-watched videos of each video, filled by the neighbor job
+CREATE TABLE video_neighbors (
+    bv VARCHAR(50) PRIMARY KEY,
+    neighbors VARCHAR(50)[] NOT NULL,
+    computed_at TIMESTAMP NOT NULL,
+    -- first and latest change not reflected yet, null while fresh
+    dirty_since TIMESTAMP,
+    changed_at TIMESTAMP
+);
+CREATE INDEX video_neighbors_neighbors_idx ON video_neighbors USING gin (neighbors);
+
 
 create function recommend_videos_for_user(current_user_id bigint, pagesize integer, pagenum integer)
     returns TABLE(bv character varying)
@@ -4,6 +4,8 @@ import io.sustc.dto.DanmuRecord;
 import io.sustc.dto.UserRecord;
 import io.sustc.dto.VideoRecord;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 public interface DatabaseService {
@@ -29,6 +31,31 @@ public interface DatabaseService {
             List<VideoRecord> videoRecords
     );
 
+    /**
+     * Imports data to an empty database from record streams.
+     * Each iterator is consumed exactly once, so implementations can write the
+     * records batch by batch without holding the whole data set in memory.
+     *
+     * @param danmuRecords danmu records to import
+     * @param userRecords  user records to import
+     * @param videoRecords video records to import
+     * @implNote The default implementation collects the streams and delegates to
+     * {@link #importData(List, List, List)}.
+     */
+    default void importData(
+            Iterator<DanmuRecord> danmuRecords,
+            Iterator<UserRecord> userRecords,
+            Iterator<VideoRecord> videoRecords
+    ) {
+        List<DanmuRecord> danmus = new ArrayList<>();
+        danmuRecords.forEachRemaining(danmus::add);
+        List<UserRecord> users = new ArrayList<>();
+        userRecords.forEachRemaining(users::add);
+        List<VideoRecord> videos = new ArrayList<>();
+        videoRecords.forEachRemaining(videos::add);
+        importData(danmus, users, videos);
+    }
+
     /**
      * Truncates all tables in the database.
      * <p>
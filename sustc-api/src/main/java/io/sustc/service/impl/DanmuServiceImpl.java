@@ -7,7 +7,6 @@ import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -16,6 +15,10 @@ import org.springframework.transaction.annotation.Transactional;
 import io.sustc.dto.AuthInfo;
 import io.sustc.service.DanmuService;
 import io.sustc.service.impl.Tools.Authenticate;
+import io.sustc.service.impl.Recommend.RankedSnapshot;
+import io.sustc.service.impl.Tools.DanmuHistograms;
+import io.sustc.service.impl.Tools.LazySnapshot;
+import io.sustc.service.impl.Tools.DanmuIdAllocator;
 import lombok.extern.slf4j.Slf4j;
 
 @Service
@@ -25,6 +28,15 @@ public class DanmuServiceImpl implements DanmuService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private DanmuIdAllocator danmuIdAllocator;
+
+    @Autowired
+    private DanmuHistograms danmuHistograms;
+
+    @Autowired
+    private RankedSnapshot rankedSnapshot;
+
     @Override
     public long sendDanmu(AuthInfo auth, String bv, String content, float time) {
         try (Connection conn = dataSource.getConnection();) {
@@ -55,21 +67,23 @@ public class DanmuServiceImpl implements DanmuService {
                     log.error("User has not watched video: {}", bv);
                     return -1;
                 }
-                String sql = "INSERT INTO danmus (bv, mid, content, time, posttime) VALUES (?, ?, ?, ?, ?)";
-                PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-                ps.setString(1, bv);
-                ps.setLong(2, auth.getMid());
-                ps.setString(3, content);
-                ps.setFloat(4, time);
-                ps.setTimestamp(5, new java.sql.Timestamp(System.currentTimeMillis()));
-                ps.executeUpdate();
-                ResultSet rs = ps.getGeneratedKeys();
-                if (rs.next()) {
-                    long id = rs.getLong(1);
-                    //log.info("Successfully send danmu: {}", id);
-                    return id;
+                long id = danmuIdAllocator.nextId(conn);
+                String sql = "INSERT INTO danmus (id, bv, mid, content, time, posttime) VALUES (?, ?, ?, ?, ?, ?)";
+                PreparedStatement ps = conn.prepareStatement(sql);
+                ps.setLong(1, id);
+                ps.setString(2, bv);
+                ps.setLong(3, auth.getMid());
+                ps.setString(4, content);
+                ps.setFloat(5, time);
+                ps.setTimestamp(6, new java.sql.Timestamp(System.currentTimeMillis()));
+                // announced before the insert, so a histogram load cannot count it twice
+                try (LazySnapshot.Change change = danmuHistograms.begin()) {
+                    ps.executeUpdate();
+                    danmuHistograms.add(change, id, bv, time);
                 }
-                return 0;
+                rankedSnapshot.markChanged(bv);
+                //log.info("Successfully send danmu: {}", id);
+                return id;
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -5,10 +5,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import javax.sql.DataSource;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -16,7 +18,20 @@ import io.sustc.dto.DanmuRecord;
 import io.sustc.dto.UserRecord;
 import io.sustc.dto.VideoRecord;
 import io.sustc.service.DatabaseService;
+import io.sustc.service.impl.Recommend.CoWatchIndex;
+import io.sustc.service.impl.Recommend.RankedSnapshot;
+import io.sustc.service.impl.Search.SearchCache;
+import io.sustc.service.impl.Search.SearchIndex;
+import io.sustc.service.impl.Tools.RefreshCoordinator;
+import io.sustc.service.impl.Tools.WatchStats;
+import io.sustc.service.impl.Tools.Authenticate;
+import io.sustc.service.impl.Tools.DanmuHistograms;
+import io.sustc.service.impl.Tools.DanmuIdAllocator;
 import io.sustc.service.impl.Uploaders.DanmuDataUploader;
+import io.sustc.service.impl.Uploaders.ImportMode;
+import io.sustc.service.impl.Uploaders.ImportPhaseManager;
+import io.sustc.service.impl.Uploaders.ImportScheduler;
+import io.sustc.service.impl.Uploaders.StagedReload;
 import io.sustc.service.impl.Uploaders.UserDataUploader;
 import io.sustc.service.impl.Uploaders.VideoDataUploader;
 import lombok.extern.slf4j.Slf4j;
@@ -45,6 +60,65 @@ public class DatabaseServiceImpl implements DatabaseService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private DanmuIdAllocator danmuIdAllocator;
+
+    @Autowired
+    private RefreshCoordinator refreshCoordinator;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private WatchStats watchStats;
+
+    @Autowired
+    private SearchCache searchCache;
+
+    @Autowired
+    private DanmuHistograms danmuHistograms;
+
+    @Autowired
+    private CoWatchIndex coWatchIndex;
+
+    @Autowired
+    private RankedSnapshot rankedSnapshot;
+
+    /**
+     * {@code COPY} streams the records in binary format, {@code BATCH} falls back
+     * to the batched {@code INSERT} statements.
+     */
+    @Value("${sustc.import.mode:COPY}")
+    private ImportMode importMode;
+
+    /**
+     * Whether keys and indexes are dropped before loading and rebuilt afterwards.
+     */
+    @Value("${sustc.import.defer-indexes:true}")
+    private boolean deferIndexes;
+
+    /**
+     * Size of the connection pool, which bounds the import batches in flight so
+     * that no worker waits on a connection. 10 is the HikariCP default.
+     */
+    @Value("${spring.datasource.hikari.maximum-pool-size:10}")
+    private int poolSize;
+
+    /**
+     * Whether a reload goes into UNLOGGED staging tables that are swapped in at the
+     * end, instead of truncating and refilling the live tables.
+     */
+    @Value("${sustc.import.staged-reload:false}")
+    private boolean stagedReload;
+
+    /**
+     * Tables whose keys and indexes are deferred during the load.
+     */
+    private static final String[] DEFERRED_TABLES = {
+            "users", "auth_info", "user_relationships", "videos", "user_video_watch",
+            "user_video_interaction", "danmus", "danmu_like",
+    };
+
     @Override
     public List<Integer> getGroupMembers() {
         return Arrays.asList(12210216, 12212522);
@@ -59,22 +133,117 @@ public class DatabaseServiceImpl implements DatabaseService {
         System.out.println("Total danmu records: " + danmuRecords.size());
         System.out.println("Total user records: " + userRecords.size());
         System.out.println("Total video records: " + videoRecords.size());
-        log.info("Importing data...");
+        log.info("Importing data in {} mode...", importMode);
+        runImport((scheduler, target) -> {
+            new UserDataUploader(target, importMode).registerStages(scheduler, userRecords);
+            new VideoDataUploader(target, importMode).registerStages(scheduler, videoRecords);
+            new DanmuDataUploader(target, importMode, danmuIdAllocator, danmuHistograms)
+                    .registerStages(scheduler, danmuRecords);
+        });
+    }
+
+    @Override
+    public void importData(
+            Iterator<DanmuRecord> danmuRecords,
+            Iterator<UserRecord> userRecords,
+            Iterator<VideoRecord> videoRecords) {
+
+        log.info("Streaming data in {} mode...", importMode);
+        runImport((scheduler, target) -> {
+            new UserDataUploader(target, importMode).registerStages(scheduler, userRecords);
+            new VideoDataUploader(target, importMode).registerStages(scheduler, videoRecords);
+            new DanmuDataUploader(target, importMode, danmuIdAllocator, danmuHistograms)
+                    .registerStages(scheduler, danmuRecords);
+        });
+    }
+
+    /**
+     * Adds the import stages to a scheduler, writing through the given data source.
+     */
+    @FunctionalInterface
+    private interface StageRegistrar {
+        void register(ImportScheduler scheduler, DataSource target) throws SQLException;
+    }
+
+    private void runImport(StageRegistrar registrar) {
         long start = System.currentTimeMillis();
+        StagedReload reload = null;
+        DataSource target = dataSource;
+        boolean finished = false;
         try {
-            truncate();
-            UserDataUploader userUploader = new UserDataUploader(dataSource);
-            userUploader.uploadData(userRecords);
-            VideoDataUploader videoUploader = new VideoDataUploader(dataSource);
-            videoUploader.uploadVideoData(videoRecords);
-            DanmuDataUploader danmuUploader = new DanmuDataUploader(dataSource);
-            danmuUploader.uploadData(danmuRecords);
-            long end = System.currentTimeMillis();
-            preCaculate();
-            log.info("Importing data finished, time: {}ms", end - start);
-
+            if (stagedReload) {
+                reload = new StagedReload(dataSource);
+                reload.prepare();
+                target = reload.getStagingDataSource();
+            } else {
+                truncate();
+            }
+            // after the truncate, which drops the histograms
+            danmuHistograms.beginImport();
+            ImportScheduler scheduler = new ImportScheduler(poolSize);
+            registrar.register(scheduler, target);
+            load(scheduler, target);
+            if (reload != null) {
+                // the aggregates are computed on the staging tables so they swap in together
+                preCaculate(target);
+                reload.setLogged();
+                reload.swap();
+            } else {
+                preCaculate(dataSource);
+            }
+            finished = true;
         } catch (SQLException e) {
-            log.error(e.getMessage());
+            throw new RuntimeException(e);
+        } finally {
+            // every video changed, and a failed import may have left caches built from half-loaded tables
+            refreshCoordinator.markAllDirty();
+            Authenticate.principals().invalidateAll();
+            searchIndex.invalidate();
+            watchStats.invalidate();
+            searchCache.invalidate();
+            if (finished) {
+                danmuHistograms.finishImport();
+            } else {
+                danmuHistograms.invalidate();
+            }
+            coWatchIndex.invalidate();
+        }
+        log.info("Importing data finished, time: {}ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Runs the import stages, with the keys and indexes dropped around them when
+     * deferred. They are rebuilt even if a stage throws, and a failed rebuild
+     * fails the import.
+     */
+    private void load(ImportScheduler scheduler, DataSource target) throws SQLException {
+        ImportPhaseManager phases = new ImportPhaseManager(target, DEFERRED_TABLES);
+        boolean deferred = false;
+        if (deferIndexes) {
+            try {
+                phases.dropAll();
+                deferred = true;
+            } catch (SQLException e) {
+                log.error("Failed to drop indexes, loading with them in place", e);
+            }
+        }
+        Throwable failure = null;
+        try {
+            scheduler.run();
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (deferred) {
+                try {
+                    phases.rebuild();
+                } catch (SQLException e) {
+                    if (failure == null) {
+                        throw e;
+                    }
+                    failure.addSuppressed(e);
+                }
+            }
         }
     }
 
@@ -111,6 +280,13 @@ public class DatabaseServiceImpl implements DatabaseService {
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+        Authenticate.principals().invalidateAll();
+        searchIndex.invalidate();
+        watchStats.invalidate();
+        searchCache.invalidate();
+        danmuHistograms.invalidate();
+        coWatchIndex.invalidate();
+        rankedSnapshot.markAllChanged();
     }
 
     @Override
@@ -131,7 +307,7 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
     }
 
-    private void preCaculate() {
+    private void preCaculate(DataSource target) {
         String sql = "INSERT INTO video_interactions_aggregates (bv, like_count, coin_count, fav_count)" +
                 "SELECT bv," +
                 "SUM(is_liked::int) AS like_count," +
@@ -160,7 +336,7 @@ public class DatabaseServiceImpl implements DatabaseService {
                 "like_rate = EXCLUDED.like_rate, " +
                 "coin_rate = EXCLUDED.coin_rate, " +
                 "fav_rate = EXCLUDED.fav_rate;";
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = target.getConnection();
                 PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.execute();
         } catch (SQLException e) {
@@ -1,5 +0,0 @@
-package io.sustc.service.impl;
-
-public class Global {
-    public static boolean need_to_update = true;
-}
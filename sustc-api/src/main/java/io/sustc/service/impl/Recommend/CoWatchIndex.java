@@ -0,0 +1,314 @@
+package io.sustc.service.impl.Recommend;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.sustc.service.impl.Tools.LazySnapshot;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory co-watch graph answering recommendNextVideo without the self-join
+ * on {@code user_video_watch}.
+ * <p>
+ * Viewers are numbered densely and every video keeps a {@link ViewerSet} of
+ * them, every viewer the videos they watched. The candidates for a video are the
+ * other videos its viewers watched, and each is scored by the size of the
+ * intersection of the two viewer sets; a candidate with fewer viewers than the
+ * weakest overlap still kept is skipped without intersecting. Ties go to the
+ * smaller bv in byte order, as in the SQL version.
+ * <p>
+ * The graph is loaded from the database on first use by a {@link LazySnapshot}.
+ * deleteVideo and deleteAccount remove what they deleted once committed, which
+ * is safe to apply twice, and an import, the only other writer of watches,
+ * drops the graph to be loaded again.
+ */
+@Slf4j
+@Component
+public class CoWatchIndex {
+    private static final String LOAD_SQL = "SELECT mid, bv FROM user_video_watch";
+    public static final int RECOMMENDATIONS = 5;
+
+    private final LazySnapshot<Graph> graph;
+    // numbers the loads, so sketches of the viewer sets know when to rebuild
+    private final AtomicLong loads = new AtomicLong();
+
+    @Autowired
+    public CoWatchIndex(DataSource dataSource) {
+        this.graph = new LazySnapshot<>(dataSource, this::load);
+    }
+
+    /**
+     * One load of the watches, changed in place by the deletions.
+     */
+    private static final class Graph {
+        final long builds;
+        final Map<String, Integer> videoIds;
+        // per video, null once deleted
+        final String[] bvs;
+        final ViewerSet[] viewers;
+        final Map<Long, Integer> userIds;
+        // per viewer, null once deleted; may still list deleted videos
+        final int[][] watched;
+
+        Graph(long builds, Map<String, Integer> videoIds, String[] bvs, ViewerSet[] viewers,
+                Map<Long, Integer> userIds, int[][] watched) {
+            this.builds = builds;
+            this.videoIds = videoIds;
+            this.bvs = bvs;
+            this.viewers = viewers;
+            this.userIds = userIds;
+            this.watched = watched;
+        }
+    }
+
+    /**
+     * Up to five other videos sharing the most viewers with the given one, most
+     * shared first. Empty when nobody watched it or its viewers watched nothing
+     * else.
+     */
+    public List<String> recommend(String bv) throws SQLException {
+        return neighbors(bv, RECOMMENDATIONS);
+    }
+
+    /**
+     * Up to {@code limit} other videos sharing the most viewers with the given
+     * one, ranked as by {@link #recommend(String)}.
+     */
+    public List<String> neighbors(String bv, int limit) throws SQLException {
+        return graph.read(loaded -> {
+            Integer target = loaded.videoIds.get(bv);
+            if (target == null) {
+                return new ArrayList<>();
+            }
+            BitSet candidates = new BitSet(loaded.bvs.length);
+            loaded.viewers[target].forEach(user -> {
+                for (int video : loaded.watched[user]) {
+                    candidates.set(video);
+                }
+            });
+            return topOverlaps(loaded, target, candidates, limit);
+        });
+    }
+
+    /**
+     * The given candidates ranked as by {@link #recommend(String)}, keeping the
+     * best {@code limit} that share a viewer with the video.
+     */
+    public List<String> rank(String bv, Collection<String> candidates, int limit) throws SQLException {
+        return graph.read(loaded -> {
+            Integer target = loaded.videoIds.get(bv);
+            if (target == null) {
+                return new ArrayList<>();
+            }
+            BitSet ids = new BitSet(loaded.bvs.length);
+            for (String candidate : candidates) {
+                Integer id = loaded.videoIds.get(candidate);
+                if (id != null) {
+                    ids.set(id);
+                }
+            }
+            return topOverlaps(loaded, target, ids, limit);
+        });
+    }
+
+    /**
+     * Passes the viewer set of every video to the action under the read lock,
+     * returning the number of the load they come from. The action must not keep
+     * the sets.
+     */
+    long forEachVideo(BiConsumer<String, ViewerSet> action) throws SQLException {
+        return graph.read(loaded -> {
+            for (int video = 0; video < loaded.bvs.length; video++) {
+                if (loaded.viewers[video] != null) {
+                    action.accept(loaded.bvs[video], loaded.viewers[video]);
+                }
+            }
+            return loaded.builds;
+        });
+    }
+
+    /**
+     * Number of the current load, loading the graph first if needed.
+     */
+    long builds() throws SQLException {
+        return graph.read(loaded -> loaded.builds);
+    }
+
+    private static List<String> topOverlaps(Graph loaded, int target, BitSet candidates, int limit) {
+        ViewerSet audience = loaded.viewers[target];
+        candidates.clear(target);
+
+        // the best candidates so far, best first
+        int[] best = new int[limit];
+        int[] bestOverlap = new int[limit];
+        int found = 0;
+        for (int video = candidates.nextSetBit(0); video >= 0; video = candidates.nextSetBit(video + 1)) {
+            ViewerSet other = loaded.viewers[video];
+            if (other == null) {
+                continue;
+            }
+            // the overlap cannot exceed either set, so a small candidate cannot make it in
+            if (found == limit && Math.min(other.size(), audience.size()) < bestOverlap[limit - 1]) {
+                continue;
+            }
+            int overlap = audience.intersectionSize(other);
+            if (overlap == 0) {
+                continue;
+            }
+            int position = found;
+            while (position > 0
+                    && ranksBefore(loaded, overlap, video, bestOverlap[position - 1], best[position - 1])) {
+                position--;
+            }
+            if (position == limit) {
+                continue;
+            }
+            int moved = Math.min(found, limit - 1) - position;
+            System.arraycopy(best, position, best, position + 1, moved);
+            System.arraycopy(bestOverlap, position, bestOverlap, position + 1, moved);
+            best[position] = video;
+            bestOverlap[position] = overlap;
+            found = Math.min(found + 1, limit);
+        }
+
+        List<String> result = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            result.add(loaded.bvs[best[i]]);
+        }
+        return result;
+    }
+
+    private static boolean ranksBefore(Graph loaded, int overlap, int video, int otherOverlap, int otherVideo) {
+        if (overlap != otherOverlap) {
+            return overlap > otherOverlap;
+        }
+        // String order is byte order for the ASCII bvs, matching COLLATE "C"
+        return loaded.bvs[video].compareTo(loaded.bvs[otherVideo]) < 0;
+    }
+
+    /**
+     * Forgets a deleted video and its viewers' watches of it.
+     */
+    public void removeVideo(String bv) {
+        removeVideos(Collections.singletonList(bv));
+    }
+
+    public void removeVideos(Collection<String> deleted) {
+        List<String> bvs = new ArrayList<>(deleted);
+        graph.update(loaded -> {
+            for (String bv : bvs) {
+                Integer id = loaded.videoIds.remove(bv);
+                if (id != null) {
+                    loaded.bvs[id] = null;
+                    loaded.viewers[id] = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets every watch of a deleted user.
+     */
+    public void removeUser(long mid) {
+        graph.update(loaded -> {
+            Integer user = loaded.userIds.remove(mid);
+            if (user == null) {
+                return;
+            }
+            for (int video : loaded.watched[user]) {
+                if (loaded.viewers[video] != null) {
+                    loaded.viewers[video].remove(user);
+                }
+            }
+            loaded.watched[user] = null;
+        });
+    }
+
+    /**
+     * Drops the whole graph, for when the tables are reloaded. The next
+     * recommendation loads it again.
+     */
+    public void invalidate() {
+        graph.invalidate();
+    }
+
+    private Graph load(Connection conn) throws SQLException {
+        long start = System.nanoTime();
+        Map<String, Integer> loadedVideoIds = new HashMap<>();
+        List<String> loadedBvs = new ArrayList<>();
+        Map<Long, Integer> loadedUserIds = new HashMap<>();
+        int[] rowUsers = new int[1024];
+        int[] rowVideos = new int[1024];
+        int rows = 0;
+        try (PreparedStatement ps = conn.prepareStatement(LOAD_SQL)) {
+            // stream the watches rather than holding them all in the driver
+            ps.setFetchSize(10000);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (rows == rowUsers.length) {
+                        rowUsers = Arrays.copyOf(rowUsers, rows * 2);
+                        rowVideos = Arrays.copyOf(rowVideos, rows * 2);
+                    }
+                    rowUsers[rows] = loadedUserIds.computeIfAbsent(rs.getLong("mid"), mid -> loadedUserIds.size());
+                    rowVideos[rows] = loadedVideoIds.computeIfAbsent(rs.getString("bv"), bv -> {
+                        loadedBvs.add(bv);
+                        return loadedBvs.size() - 1;
+                    });
+                    rows++;
+                }
+            }
+        }
+
+        int[][] videoUsers = group(rowVideos, rowUsers, rows, loadedBvs.size());
+        int[][] userVideos = group(rowUsers, rowVideos, rows, loadedUserIds.size());
+        ViewerSet[] loadedViewers = new ViewerSet[videoUsers.length];
+        int bitmaps = 0;
+        for (int video = 0; video < videoUsers.length; video++) {
+            Arrays.sort(videoUsers[video]);
+            loadedViewers[video] = ViewerSet.of(videoUsers[video], videoUsers[video].length);
+            if (loadedViewers[video].isBitmap()) {
+                bitmaps++;
+            }
+        }
+        log.info("Built co-watch index: {} watches of {} videos ({} as bitmaps) by {} users in {} ms", rows,
+                loadedViewers.length, bitmaps, loadedUserIds.size(), (System.nanoTime() - start) / 1_000_000);
+        return new Graph(loads.incrementAndGet(), loadedVideoIds, loadedBvs.toArray(new String[0]), loadedViewers,
+                loadedUserIds, userVideos);
+    }
+
+    /**
+     * For every key, the values of the rows holding it.
+     */
+    private static int[][] group(int[] keys, int[] values, int rows, int keyCount) {
+        int[] counts = new int[keyCount];
+        for (int i = 0; i < rows; i++) {
+            counts[keys[i]]++;
+        }
+        int[][] groups = new int[keyCount][];
+        for (int key = 0; key < keyCount; key++) {
+            groups[key] = new int[counts[key]];
+            counts[key] = 0;
+        }
+        for (int i = 0; i < rows; i++) {
+            groups[keys[i]][counts[keys[i]]++] = values[i];
+        }
+        return groups;
+    }
+}
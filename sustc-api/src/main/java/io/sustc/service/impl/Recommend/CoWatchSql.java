@@ -0,0 +1,47 @@
+package io.sustc.service.impl.Recommend;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The exact recommendNextVideo query, self-joining {@code user_video_watch} in
+ * PostgreSQL. It is what {@link NextVideoMode#SQL} runs and what the in-memory
+ * modes are measured against.
+ */
+public class CoWatchSql {
+    private static final String SQL = "SELECT v.bv, COUNT(uvw.mid) AS common_viewers " +
+            "FROM user_video_watch uvw " +
+            "JOIN videos v ON uvw.bv = v.bv " +
+            "WHERE uvw.mid IN ( " +
+            "    SELECT mid " +
+            "    FROM user_video_watch " +
+            "    WHERE bv = ? " +
+            ") " +
+            "AND uvw.bv != ? " +
+            "GROUP BY v.bv " +
+            // ties by bv in byte order, so the in-memory index can match them
+            "ORDER BY common_viewers DESC, v.bv COLLATE \"C\" " +
+            "LIMIT 5;";
+
+    /**
+     * Up to five videos sharing the most viewers with the given one, most shared
+     * first.
+     */
+    public static List<String> recommend(String bv, Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(SQL)) {
+            ps.setString(1, bv);
+            ps.setString(2, bv);
+            List<String> result = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    result.add(rs.getString("bv"));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.sustc.service.impl.Recommend;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Measures the recall and latency of {@link MinHashIndex} against the exact
+ * recommendNextVideo query, to choose {@code sustc.recommend.lsh.bands} and
+ * {@code rows}.
+ * <p>
+ * A fixed random sample of watched videos is answered once by
+ * {@link CoWatchSql}, then by a MinHash index for every combination of bands
+ * and rows. Recall is the share of the exact recommendations the index also
+ * returned, over the whole sample.
+ */
+@Component
+public class LshBenchmark {
+    private static final long SEED = 42;
+
+    private final DataSource dataSource;
+    private final CoWatchIndex coWatchIndex;
+
+    @Autowired
+    public LshBenchmark(DataSource dataSource, CoWatchIndex coWatchIndex) {
+        this.dataSource = dataSource;
+        this.coWatchIndex = coWatchIndex;
+    }
+
+    /**
+     * One line for the exact query, then one per combination of bands and rows.
+     */
+    public List<String> run(int[] bands, int[] rows, int rerank, int samples) throws SQLException {
+        List<String> watched = new ArrayList<>();
+        coWatchIndex.forEachVideo((bv, viewers) -> {
+            if (viewers.size() > 0) {
+                watched.add(bv);
+            }
+        });
+        Collections.sort(watched);
+        Collections.shuffle(watched, new Random(SEED));
+        List<String> sample = watched.subList(0, Math.min(samples, watched.size()));
+
+        List<String> report = new ArrayList<>();
+        List<List<String>> exact = new ArrayList<>(sample.size());
+        long[] nanos = new long[sample.size()];
+        try (Connection conn = dataSource.getConnection()) {
+            for (int i = 0; i < sample.size(); i++) {
+                long start = System.nanoTime();
+                exact.add(CoWatchSql.recommend(sample.get(i), conn));
+                nanos[i] = System.nanoTime() - start;
+            }
+        }
+        report.add(String.format("exact SQL: %d videos, %s", sample.size(), latency(nanos)));
+
+        for (int bandCount : bands) {
+            for (int rowCount : rows) {
+                MinHashIndex index = new MinHashIndex(coWatchIndex, bandCount, rowCount, rerank);
+                long buildMillis = index.prepare();
+                long expected = 0;
+                long hits = 0;
+                for (int i = 0; i < sample.size(); i++) {
+                    long start = System.nanoTime();
+                    List<String> approximate = index.recommend(sample.get(i));
+                    nanos[i] = System.nanoTime() - start;
+                    Set<String> found = new HashSet<>(approximate);
+                    for (String bv : exact.get(i)) {
+                        expected++;
+                        if (found.contains(bv)) {
+                            hits++;
+                        }
+                    }
+                }
+                report.add(String.format("bands %d rows %d: recall %.3f, %s, built in %d ms", bandCount, rowCount,
+                        expected == 0 ? 1.0 : (double) hits / expected, latency(nanos), buildMillis));
+            }
+        }
+        return report;
+    }
+
+    private static String latency(long[] nanos) {
+        if (nanos.length == 0) {
+            return "no samples";
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+        double p50 = sorted[sorted.length / 2] / 1e6;
+        double p99 = sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1e6;
+        return String.format("mean %.3f ms, p50 %.3f ms, p99 %.3f ms", mean, p50, p99);
+    }
+}
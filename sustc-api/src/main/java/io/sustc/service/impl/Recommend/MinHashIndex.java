@@ -0,0 +1,200 @@
+package io.sustc.service.impl.Recommend;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.sustc.service.impl.Tools.TopK;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Approximate recommendNextVideo over MinHash signatures of the viewer sets, for
+ * when gathering every co-watched video is too slow.
+ * <p>
+ * Every watched video gets a signature of {@code bands * rows} minimum hashes of
+ * its viewers, and each band of {@code rows} of them puts the video in one
+ * bucket. The candidates of a video are the others sharing a bucket with it in
+ * any band, which are likely to share many viewers, so a lookup touches a few
+ * buckets instead of every viewer's history. The {@code rerank} candidates
+ * agreeing with it in most signature positions are then ranked exactly by the
+ * {@link CoWatchIndex}. More bands find more candidates, more rows per band
+ * fewer but closer ones; the {@code lsh benchmark} command measures the recall
+ * and latency of each choice against the exact query.
+ * <p>
+ * The signatures are computed from the co-watch index and rebuilt after it
+ * reloads. Deleted videos drop out in the exact ranking, and the signatures of
+ * videos that lost viewers are left as they were until the next rebuild.
+ */
+@Slf4j
+@Component
+public class MinHashIndex {
+    // fixed, so signatures and benchmark runs are reproducible
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final CoWatchIndex coWatchIndex;
+    private final int bands;
+    private final int rows;
+    private final int rerank;
+    // per hash function, an odd multiplier and an offset
+    private final long[] multipliers;
+    private final long[] offsets;
+
+    private volatile Sketch sketch;
+
+    @Autowired
+    public MinHashIndex(CoWatchIndex coWatchIndex, @Value("${sustc.recommend.lsh.bands:32}") int bands,
+            @Value("${sustc.recommend.lsh.rows:2}") int rows, @Value("${sustc.recommend.lsh.rerank:50}") int rerank) {
+        this.coWatchIndex = coWatchIndex;
+        this.bands = bands;
+        this.rows = rows;
+        this.rerank = Math.max(rerank, CoWatchIndex.RECOMMENDATIONS);
+        Random random = new Random(SEED);
+        multipliers = new long[bands * rows];
+        offsets = new long[bands * rows];
+        for (int i = 0; i < multipliers.length; i++) {
+            multipliers[i] = random.nextLong() | 1;
+            offsets[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Signatures and buckets of one load of the co-watch index.
+     */
+    private static final class Sketch {
+        long builds;
+        final Map<String, Integer> ids = new HashMap<>();
+        final List<String> bvs = new ArrayList<>();
+        final List<int[]> signatures = new ArrayList<>();
+        // per band, band hash to the videos in that bucket
+        final List<Map<Long, int[]>> buckets = new ArrayList<>();
+    }
+
+    /**
+     * Up to five videos likely to share the most viewers with the given one, in
+     * the exact order of the ones found. Empty when nobody watched it or no
+     * candidate shares a viewer.
+     */
+    public List<String> recommend(String bv) throws SQLException {
+        Sketch current = current();
+        Integer id = current.ids.get(bv);
+        if (id == null) {
+            return new ArrayList<>();
+        }
+        int[] signature = current.signatures.get(id);
+        BitSet found = new BitSet(current.bvs.size());
+        for (int band = 0; band < bands; band++) {
+            int[] bucket = current.buckets.get(band).get(bandKey(signature, band));
+            for (int other : bucket) {
+                found.set(other);
+            }
+        }
+        found.clear(id);
+
+        List<String> candidates = new ArrayList<>(found.cardinality());
+        long[] agreements = new long[found.cardinality()];
+        for (int other = found.nextSetBit(0); other >= 0; other = found.nextSetBit(other + 1)) {
+            int[] otherSignature = current.signatures.get(other);
+            int agreeing = 0;
+            for (int i = 0; i < signature.length; i++) {
+                if (signature[i] == otherSignature[i]) {
+                    agreeing++;
+                }
+            }
+            agreements[candidates.size()] = agreeing;
+            candidates.add(current.bvs.get(other));
+        }
+        List<String> closest = candidates.size() <= rerank ? candidates
+                : TopK.page(candidates, agreements, rerank, 1);
+        return coWatchIndex.rank(bv, closest, CoWatchIndex.RECOMMENDATIONS);
+    }
+
+    /**
+     * Builds the signatures now if the co-watch index changed, returning how long
+     * that took in milliseconds.
+     */
+    public long prepare() throws SQLException {
+        long start = System.nanoTime();
+        current();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private Sketch current() throws SQLException {
+        Sketch current = sketch;
+        if (current != null && current.builds == coWatchIndex.builds()) {
+            return current;
+        }
+        synchronized (this) {
+            current = sketch;
+            if (current == null || current.builds != coWatchIndex.builds()) {
+                current = build();
+                sketch = current;
+            }
+            return current;
+        }
+    }
+
+    private Sketch build() throws SQLException {
+        long start = System.nanoTime();
+        List<Map<Long, List<Integer>>> grouped = new ArrayList<>();
+        for (int band = 0; band < bands; band++) {
+            grouped.add(new HashMap<>());
+        }
+        Sketch result = new Sketch();
+        result.builds = coWatchIndex.forEachVideo((bv, viewers) -> {
+            // nobody watched it, so it has no minimum and no neighbors
+            if (viewers.size() == 0) {
+                return;
+            }
+            int id = result.bvs.size();
+            int[] signature = signature(viewers);
+            result.ids.put(bv, id);
+            result.bvs.add(bv);
+            result.signatures.add(signature);
+            for (int band = 0; band < bands; band++) {
+                grouped.get(band).computeIfAbsent(bandKey(signature, band), key -> new ArrayList<>()).add(id);
+            }
+        });
+        for (Map<Long, List<Integer>> band : grouped) {
+            Map<Long, int[]> buckets = new HashMap<>(band.size() * 2);
+            for (Map.Entry<Long, List<Integer>> bucket : band.entrySet()) {
+                buckets.put(bucket.getKey(), bucket.getValue().stream().mapToInt(Integer::intValue).toArray());
+            }
+            result.buckets.add(buckets);
+        }
+        log.info("Built MinHash signatures of {} videos, {} bands of {} rows, in {} ms", result.bvs.size(), bands,
+                rows, (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    private int[] signature(ViewerSet viewers) {
+        int[] signature = new int[multipliers.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        viewers.forEach(viewer -> {
+            for (int i = 0; i < signature.length; i++) {
+                int hash = (int) ((multipliers[i] * viewer + offsets[i]) >>> 33);
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        });
+        return signature;
+    }
+
+    private long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            key = (key ^ signature[i]) * 0x9E3779B97F4A7C15L;
+            key ^= key >>> 29;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,241 @@
+package io.sustc.service.impl.Recommend;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Precomputed most co-watched videos of every video in {@code video_neighbors},
+ * so a recommendNextVideo lookup is a single primary key read.
+ * <p>
+ * {@link #refresh()} is a batch job: it computes the rows of the videos that
+ * have none or whose row is marked dirty, in parallel across the cores, with the
+ * {@link CoWatchIndex} ranking. Writes that remove watches mark the rows they
+ * invalidate once committed: those of the videos that lost viewers, and those
+ * listing a deleted video. A row keeps {@code dirty_since}, the first change it
+ * does not reflect yet, and {@code changed_at}, the latest; a run only clears a
+ * mark no newer than the moment it started, so a change made during a run is
+ * picked up by the next. An import empties the table along with the others.
+ */
+@Slf4j
+@Component
+public class NeighborTable {
+    // stored neighbors in order, leaving out any deleted since the row was written
+    private static final String LOOKUP_SQL = "SELECT n.dirty_since IS NOT NULL AS dirty, "
+            + "ARRAY(SELECT u.bv FROM unnest(n.neighbors) WITH ORDINALITY u(bv, pos) "
+            + "WHERE EXISTS (SELECT 1 FROM videos v WHERE v.bv = u.bv) ORDER BY u.pos) AS neighbors "
+            + "FROM video_neighbors n WHERE n.bv = ?";
+    private static final String TARGETS_SQL = "SELECT v.bv FROM videos v LEFT JOIN video_neighbors n ON v.bv = n.bv "
+            + "WHERE n.bv IS NULL OR n.dirty_since IS NOT NULL";
+    // a row changed after the run started stays dirty, but is at most as old as the run
+    private static final String UPSERT_SQL = "INSERT INTO video_neighbors (bv, neighbors, computed_at) "
+            + "SELECT ?, ?::varchar[], ?::timestamp WHERE EXISTS (SELECT 1 FROM videos WHERE bv = ?) "
+            + "ON CONFLICT (bv) DO UPDATE SET neighbors = EXCLUDED.neighbors, computed_at = EXCLUDED.computed_at, "
+            + "dirty_since = CASE WHEN video_neighbors.changed_at > EXCLUDED.computed_at "
+            + "THEN GREATEST(video_neighbors.dirty_since, EXCLUDED.computed_at) END";
+    private static final String MARK_SQL = "UPDATE video_neighbors "
+            + "SET dirty_since = COALESCE(dirty_since, now()), changed_at = now() WHERE %s";
+    private static final String DELETE_SQL = "DELETE FROM video_neighbors WHERE bv = ANY(?)";
+    private static final String SUMMARY_SQL = "SELECT COUNT(n.bv) - COUNT(n.dirty_since) AS fresh_rows, "
+            + "COUNT(n.dirty_since) AS dirty_rows, COUNT(*) - COUNT(n.bv) AS missing_rows, "
+            + "MIN(n.computed_at) AS oldest FROM videos v LEFT JOIN video_neighbors n ON v.bv = n.bv";
+    private static final String STALE_SQL = "SELECT bv, computed_at, EXTRACT(EPOCH FROM now() - dirty_since) AS stale "
+            + "FROM video_neighbors WHERE dirty_since IS NOT NULL ORDER BY dirty_since, bv";
+    // videos computed and written per task
+    private static final int BATCH_SIZE = 1000;
+
+    private final DataSource dataSource;
+    private final CoWatchIndex coWatchIndex;
+    private final int size;
+    private final int threads;
+
+    @Autowired
+    public NeighborTable(DataSource dataSource, CoWatchIndex coWatchIndex,
+            @Value("${sustc.recommend.neighbors.size:10}") int size,
+            @Value("${sustc.recommend.neighbors.threads:0}") int threads) {
+        this.dataSource = dataSource;
+        this.coWatchIndex = coWatchIndex;
+        this.size = Math.max(size, CoWatchIndex.RECOMMENDATIONS);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The first {@code limit} stored neighbors of a video that still exist, or
+     * null when the job has not computed its row yet or it is dirty, for the
+     * caller to rank them live instead.
+     */
+    public List<String> lookup(String bv, int limit) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+                PreparedStatement ps = conn.prepareStatement(LOOKUP_SQL)) {
+            ps.setString(1, bv);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getBoolean("dirty")) {
+                    return null;
+                }
+                String[] neighbors = (String[]) rs.getArray("neighbors").getArray();
+                return new ArrayList<>(Arrays.asList(neighbors).subList(0, Math.min(limit, neighbors.length)));
+            }
+        }
+    }
+
+    /**
+     * Computes every missing or dirty row, returning how many were written. Rows
+     * whose batch failed stay missing or dirty for the next run.
+     */
+    public synchronized int refresh() throws SQLException {
+        long begin = System.currentTimeMillis();
+        Timestamp start;
+        List<String> targets = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT LOCALTIMESTAMP");
+                    ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                start = rs.getTimestamp(1);
+            }
+            try (PreparedStatement ps = conn.prepareStatement(TARGETS_SQL);
+                    ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    targets.add(rs.getString("bv"));
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            return 0;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int written = 0;
+        int failed = 0;
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int from = 0; from < targets.size(); from += BATCH_SIZE) {
+                List<String> batch = targets.subList(from, Math.min(from + BATCH_SIZE, targets.size()));
+                futures.add(pool.submit(() -> computeAndWrite(batch, start)));
+            }
+            for (Future<Integer> future : futures) {
+                try {
+                    written += future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while computing video neighbors", e);
+                } catch (ExecutionException e) {
+                    failed++;
+                    log.error("Computing a batch of video neighbors failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        log.info("Computed neighbors of {} of {} videos with {} threads in {}ms, {} batches failed", written,
+                targets.size(), threads, System.currentTimeMillis() - begin, failed);
+        return written;
+    }
+
+    private int computeAndWrite(List<String> batch, Timestamp start) throws SQLException {
+        List<List<String>> computed = new ArrayList<>(batch.size());
+        for (String bv : batch) {
+            computed.add(coWatchIndex.neighbors(bv, size));
+        }
+        try (Connection conn = dataSource.getConnection();
+                PreparedStatement ps = conn.prepareStatement(UPSERT_SQL)) {
+            conn.setAutoCommit(false);
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    ps.setString(1, batch.get(i));
+                    ps.setArray(2, conn.createArrayOf("varchar", computed.get(i).toArray()));
+                    ps.setTimestamp(3, start);
+                    ps.setString(4, batch.get(i));
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     * Marks the rows of videos that lost viewers.
+     */
+    public void markChanged(Collection<String> bvs) {
+        if (bvs.isEmpty()) {
+            return;
+        }
+        try (Connection conn = dataSource.getConnection();
+                PreparedStatement ps = conn.prepareStatement(String.format(MARK_SQL, "bv = ANY(?)"))) {
+            ps.setArray(1, conn.createArrayOf("varchar", bvs.toArray()));
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Failed to mark video neighbors dirty", e);
+        }
+    }
+
+    /**
+     * Drops the rows of deleted videos and marks the rows that list them.
+     */
+    public void markDeleted(Collection<String> bvs) {
+        if (bvs.isEmpty()) {
+            return;
+        }
+        try (Connection conn = dataSource.getConnection();
+                PreparedStatement delete = conn.prepareStatement(DELETE_SQL);
+                PreparedStatement mark = conn.prepareStatement(String.format(MARK_SQL, "neighbors && ?"))) {
+            Array deleted = conn.createArrayOf("varchar", bvs.toArray());
+            delete.setArray(1, deleted);
+            delete.executeUpdate();
+            mark.setArray(1, deleted);
+            mark.executeUpdate();
+        } catch (SQLException e) {
+            log.error("Failed to mark video neighbors dirty", e);
+        }
+    }
+
+    /**
+     * How stale the table is: a summary line, then one line per dirty row with
+     * how long it has been behind, oldest first.
+     */
+    public List<String> staleness() throws SQLException {
+        List<String> report = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement(SUMMARY_SQL);
+                    ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                report.add(String.format("%d videos fresh, %d dirty, %d never computed, oldest row computed at %s",
+                        rs.getLong("fresh_rows"), rs.getLong("dirty_rows"), rs.getLong("missing_rows"),
+                        rs.getTimestamp("oldest")));
+            }
+            try (PreparedStatement ps = conn.prepareStatement(STALE_SQL);
+                    ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    report.add(String.format("%s: stale for %.1f s, computed at %s", rs.getString("bv"),
+                            rs.getDouble("stale"), rs.getTimestamp("computed_at")));
+                }
+            }
+        }
+        return report;
+    }
+}
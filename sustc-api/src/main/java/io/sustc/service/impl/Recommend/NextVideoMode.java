@@ -0,0 +1,30 @@
+package io.sustc.service.impl.Recommend;
+
+/**
+ * How recommendNextVideo finds the most co-watched videos, chosen by
+ * {@code sustc.recommend.next-video}.
+ */
+public enum NextVideoMode {
+    /**
+     * Self-joins {@code user_video_watch} in PostgreSQL on every request.
+     */
+    SQL,
+
+    /**
+     * Intersects viewer sets in the in-memory {@link CoWatchIndex}.
+     */
+    BITMAP,
+
+    /**
+     * Reads the precomputed row of {@link NeighborTable}, falling back to
+     * {@link #BITMAP} for videos the batch job has not reached yet or whose row
+     * a later write made dirty.
+     */
+    TABLE,
+
+    /**
+     * Ranks exactly only the candidates {@link MinHashIndex} finds in the
+     * viewers' MinHash buckets, which may miss some of the best videos.
+     */
+    LSH,
+}
@@ -0,0 +1,257 @@
+package io.sustc.service.impl.Recommend;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Every video ranked by its generalRecommendations score, so a page is a slice
+ * of an array instead of a join over the aggregates and all danmus.
+ * <p>
+ * The ranking is an immutable pair of bv and score arrays that readers take
+ * through a volatile reference. Changes are marked per video: by the
+ * {@link io.sustc.service.impl.Tools.RefreshCoordinator} for the videos whose
+ * aggregates it refreshed, and by sendDanmu for the danmu average. The first
+ * read after a change re-scores only the marked videos and merges them into a
+ * copy of the ranking, and a change to every video, such as an import, ranks
+ * everything again. Marks taken by a failed update are put back.
+ */
+@Slf4j
+@Component
+public class RankedSnapshot {
+    // the first %s filters the danmus, the second the videos to score
+    private static final String SCORE_SQL = "SELECT " +
+            "videos.bv, " +
+            "COALESCE(vs.like_rate, 0) + COALESCE(vs.coin_rate, 0) + COALESCE(vs.fav_rate, 0) " +
+            "+ COALESCE(va.avg_finish, 0) + COALESCE(danmu_avg, 0) AS total_score " +
+            "FROM videos " +
+            "LEFT JOIN video_stats vs ON videos.bv = vs.bv " +
+            "LEFT JOIN video_aggregates va ON videos.bv = va.bv " +
+            "LEFT JOIN ( " +
+            "    SELECT bv, COUNT(*) / NULLIF(COUNT(DISTINCT mid), 0) AS danmu_avg " +
+            "    FROM danmus WHERE %s GROUP BY bv " +
+            ") danmu_data ON videos.bv = danmu_data.bv " +
+            "WHERE %s " +
+            "ORDER BY total_score DESC";
+
+    private final DataSource dataSource;
+
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean allChanged = new AtomicBoolean(true);
+
+    private volatile Ranking ranking;
+    private volatile long rebuilds;
+    private volatile long patches;
+
+    @Autowired
+    public RankedSnapshot(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * One immutable ranking, best first.
+     */
+    private static final class Ranking {
+        final String[] bvs;
+        final double[] scores;
+        final long builtAt;
+        final long buildMillis;
+
+        Ranking(String[] bvs, double[] scores, long builtAt, long buildMillis) {
+            this.bvs = bvs;
+            this.scores = scores;
+            this.builtAt = builtAt;
+            this.buildMillis = buildMillis;
+        }
+    }
+
+    /**
+     * The bvs ranked {@code (pageNum - 1) * pageSize} up to
+     * {@code pageNum * pageSize}, fewer or none past the end. The caller checks
+     * both are positive.
+     */
+    public List<String> page(int pageSize, int pageNum) throws SQLException {
+        Ranking current = ranking;
+        if (current == null || allChanged.get() || !changed.isEmpty()) {
+            current = update();
+        }
+        long from = (long) (pageNum - 1) * pageSize;
+        if (from >= current.bvs.length) {
+            return new ArrayList<>();
+        }
+        int to = (int) Math.min(from + pageSize, current.bvs.length);
+        return new ArrayList<>(Arrays.asList(current.bvs).subList((int) from, to));
+    }
+
+    /**
+     * Marks videos whose score may have changed, once the change is committed.
+     */
+    public void markChanged(Collection<String> bvs) {
+        changed.addAll(bvs);
+    }
+
+    public void markChanged(String bv) {
+        changed.add(bv);
+    }
+
+    /**
+     * Makes the next read rank every video again.
+     */
+    public void markAllChanged() {
+        allChanged.set(true);
+    }
+
+    private synchronized Ranking update() throws SQLException {
+        // another reader may have applied the marks while we waited
+        boolean full = allChanged.getAndSet(false);
+        List<String> bvs = new ArrayList<>();
+        for (Iterator<String> it = changed.iterator(); it.hasNext();) {
+            bvs.add(it.next());
+            it.remove();
+        }
+        Ranking current = ranking;
+        if (current != null && !full && bvs.isEmpty()) {
+            return current;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            if (current == null || full) {
+                current = rebuild(start);
+                rebuilds++;
+                log.info("Ranked {} videos for general recommendations in {}ms", current.bvs.length,
+                        current.buildMillis);
+            } else {
+                current = patch(current, bvs, start);
+                patches++;
+                log.info("Re-ranked {} videos for general recommendations in {}ms", bvs.size(), current.buildMillis);
+            }
+        } catch (SQLException e) {
+            if (full) {
+                allChanged.set(true);
+            }
+            changed.addAll(bvs);
+            throw e;
+        }
+        ranking = current;
+        return current;
+    }
+
+    private Ranking rebuild(long start) throws SQLException {
+        List<String> bvs = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+        score(null, bvs, scores);
+        return toRanking(bvs, scores, start);
+    }
+
+    /**
+     * Takes the changed videos out of the ranking and merges their new scores
+     * back in, leaving out the ones that were deleted.
+     */
+    private Ranking patch(Ranking current, List<String> changedBvs, long start) throws SQLException {
+        List<String> rescoredBvs = new ArrayList<>();
+        List<Double> rescored = new ArrayList<>();
+        score(changedBvs, rescoredBvs, rescored);
+        Set<String> removed = new HashSet<>(changedBvs);
+
+        int capacity = current.bvs.length + rescoredBvs.size();
+        String[] bvs = new String[capacity];
+        double[] scores = new double[capacity];
+        int size = 0;
+        int next = 0;
+        for (int i = 0; i < current.bvs.length; i++) {
+            if (removed.contains(current.bvs[i])) {
+                continue;
+            }
+            // both are ranked, so a rescored video goes before the first worse one
+            while (next < rescoredBvs.size() && rescored.get(next) > current.scores[i]) {
+                bvs[size] = rescoredBvs.get(next);
+                scores[size++] = rescored.get(next++);
+            }
+            bvs[size] = current.bvs[i];
+            scores[size++] = current.scores[i];
+        }
+        while (next < rescoredBvs.size()) {
+            bvs[size] = rescoredBvs.get(next);
+            scores[size++] = rescored.get(next++);
+        }
+        long now = System.currentTimeMillis();
+        return new Ranking(Arrays.copyOf(bvs, size), Arrays.copyOf(scores, size), now, now - start);
+    }
+
+    /**
+     * Scores of the given videos, or all of them for null, best first.
+     */
+    private void score(List<String> only, List<String> bvs, List<Double> scores) throws SQLException {
+        String sql = only == null ? String.format(SCORE_SQL, "TRUE", "TRUE")
+                : String.format(SCORE_SQL, "bv = ANY(?)", "videos.bv = ANY(?)");
+        try (Connection conn = dataSource.getConnection();
+                PreparedStatement ps = conn.prepareStatement(sql)) {
+            if (only != null) {
+                ps.setArray(1, conn.createArrayOf("varchar", only.toArray()));
+                ps.setArray(2, conn.createArrayOf("varchar", only.toArray()));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    bvs.add(rs.getString("bv"));
+                    scores.add(rs.getDouble("total_score"));
+                }
+            }
+        }
+    }
+
+    private static Ranking toRanking(List<String> bvs, List<Double> scores, long start) {
+        double[] scoreArray = new double[scores.size()];
+        for (int i = 0; i < scoreArray.length; i++) {
+            scoreArray[i] = scores.get(i);
+        }
+        long now = System.currentTimeMillis();
+        return new Ranking(bvs.toArray(new String[0]), scoreArray, now, now - start);
+    }
+
+    /**
+     * Time the last rebuild or patch took, in milliseconds, -1 before the first.
+     */
+    public long getBuildMillis() {
+        Ranking current = ranking;
+        return current == null ? -1 : current.buildMillis;
+    }
+
+    /**
+     * Time since the ranking being served was built, in milliseconds, -1 before
+     * the first.
+     */
+    public long getAgeMillis() {
+        Ranking current = ranking;
+        return current == null ? -1 : System.currentTimeMillis() - current.builtAt;
+    }
+
+    public long getRebuilds() {
+        return rebuilds;
+    }
+
+    public long getPatches() {
+        return patches;
+    }
+
+    public int size() {
+        Ranking current = ranking;
+        return current == null ? 0 : current.bvs.length;
+    }
+}
@@ -0,0 +1,166 @@
+package io.sustc.service.impl.Recommend;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of dense viewer ids of one video, kept as a sorted {@code int} array
+ * while sparse and as a bitmap once that takes less memory.
+ * <p>
+ * Viewers are only ever removed after the set is built, so a set keeps the
+ * representation it was built with. Intersection sizes are computed without
+ * materializing the intersection: by merging or binary searching two arrays,
+ * probing a bitmap with an array, or counting the bits two bitmaps share.
+ */
+final class ViewerSet {
+    // an array this many times longer than the other is searched rather than merged
+    private static final int SEARCH_RATIO = 16;
+
+    // sorted ids while sparse, null once a bitmap
+    private int[] values;
+    private long[] words;
+    private int size;
+
+    private ViewerSet(int[] values, long[] words, int size) {
+        this.values = values;
+        this.words = words;
+        this.size = size;
+    }
+
+    /**
+     * Set of the first {@code length} ids of a sorted array without duplicates,
+     * which it may keep.
+     */
+    static ViewerSet of(int[] sorted, int length) {
+        if (length == 0) {
+            return new ViewerSet(new int[0], null, 0);
+        }
+        int wordCount = (sorted[length - 1] >>> 6) + 1;
+        // a long per 64 ids against an int per viewer
+        if (wordCount * 2L >= length) {
+            return new ViewerSet(length == sorted.length ? sorted : Arrays.copyOf(sorted, length), null, length);
+        }
+        long[] words = new long[wordCount];
+        for (int i = 0; i < length; i++) {
+            words[sorted[i] >>> 6] |= 1L << sorted[i];
+        }
+        return new ViewerSet(null, words, length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isBitmap() {
+        return words != null;
+    }
+
+    boolean contains(int id) {
+        if (words != null) {
+            int word = id >>> 6;
+            return word < words.length && (words[word] & 1L << id) != 0;
+        }
+        return Arrays.binarySearch(values, 0, size, id) >= 0;
+    }
+
+    /**
+     * Removes a viewer, returning whether it was in the set.
+     */
+    boolean remove(int id) {
+        if (words != null) {
+            if (!contains(id)) {
+                return false;
+            }
+            words[id >>> 6] &= ~(1L << id);
+        } else {
+            int index = Arrays.binarySearch(values, 0, size, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+        }
+        size--;
+        return true;
+    }
+
+    void forEach(IntConsumer action) {
+        if (words != null) {
+            for (int word = 0; word < words.length; word++) {
+                for (long bits = words[word]; bits != 0; bits &= bits - 1) {
+                    action.accept(word << 6 | Long.numberOfTrailingZeros(bits));
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                action.accept(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Number of viewers in both sets.
+     */
+    int intersectionSize(ViewerSet other) {
+        if (words != null && other.words != null) {
+            int common = 0;
+            for (int i = Math.min(words.length, other.words.length) - 1; i >= 0; i--) {
+                common += Long.bitCount(words[i] & other.words[i]);
+            }
+            return common;
+        }
+        if (words != null) {
+            return other.probe(this);
+        }
+        if (other.words != null) {
+            return probe(other);
+        }
+        return size <= other.size ? intersectArrays(this, other) : intersectArrays(other, this);
+    }
+
+    /**
+     * Viewers of this array set that the bitmap set holds.
+     */
+    private int probe(ViewerSet bitmap) {
+        int common = 0;
+        for (int i = 0; i < size; i++) {
+            if (bitmap.contains(values[i])) {
+                common++;
+            }
+        }
+        return common;
+    }
+
+    private static int intersectArrays(ViewerSet small, ViewerSet large) {
+        int common = 0;
+        if ((long) small.size * SEARCH_RATIO < large.size) {
+            // both are sorted, so each search starts where the last one ended
+            int from = 0;
+            for (int i = 0; i < small.size && from < large.size; i++) {
+                int index = Arrays.binarySearch(large.values, from, large.size, small.values[i]);
+                if (index >= 0) {
+                    common++;
+                    from = index + 1;
+                } else {
+                    from = -index - 1;
+                }
+            }
+            return common;
+        }
+        int i = 0;
+        int j = 0;
+        while (i < small.size && j < large.size) {
+            int a = small.values[i];
+            int b = large.values[j];
+            if (a == b) {
+                common++;
+                i++;
+                j++;
+            } else if (a < b) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return common;
+    }
+}
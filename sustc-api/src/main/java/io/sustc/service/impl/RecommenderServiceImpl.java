@@ -1,6 +1,5 @@
 package io.sustc.service.impl;
 
-import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -11,10 +10,18 @@ import java.util.List;
 import javax.sql.DataSource;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import io.sustc.dto.AuthInfo;
+import io.sustc.service.impl.Recommend.CoWatchIndex;
+import io.sustc.service.impl.Recommend.CoWatchSql;
+import io.sustc.service.impl.Recommend.MinHashIndex;
+import io.sustc.service.impl.Recommend.NeighborTable;
+import io.sustc.service.impl.Recommend.NextVideoMode;
+import io.sustc.service.impl.Recommend.RankedSnapshot;
+import io.sustc.service.impl.Tools.RefreshCoordinator;
 import io.sustc.service.impl.Tools.Authenticate;
 import lombok.extern.slf4j.Slf4j;
 
@@ -25,33 +32,50 @@ public class RecommenderServiceImpl implements io.sustc.service.RecommenderServi
     @Autowired
     DataSource dataSource;
 
+    @Autowired
+    RefreshCoordinator refreshCoordinator;
+
+    @Autowired
+    CoWatchIndex coWatchIndex;
+
+    @Autowired
+    NeighborTable neighborTable;
+
+    @Autowired
+    MinHashIndex minHashIndex;
+
+    @Autowired
+    RankedSnapshot rankedSnapshot;
+
+    @Value("${sustc.recommend.next-video:BITMAP}")
+    NextVideoMode nextVideoMode;
+
     @Override
     public List<String> recommendNextVideo(String bv) {
-        try(Connection conn = dataSource.getConnection();) {
-            
-            String sql = "SELECT v.bv, COUNT(uvw.mid) AS common_viewers " +
-                    "FROM user_video_watch uvw " +
-                    "JOIN videos v ON uvw.bv = v.bv " +
-                    "WHERE uvw.mid IN ( " +
-                    "    SELECT mid " +
-                    "    FROM user_video_watch " +
-                    "    WHERE bv = ? " +
-                    ") " +
-                    "AND uvw.bv != ? " +
-                    "GROUP BY v.bv " +
-                    "ORDER BY common_viewers DESC " +
-                    "LIMIT 5;";
-
-            PreparedStatement ps = conn.prepareStatement(sql);
-            ps.setString(1, bv);
-            ps.setString(2, bv);
-            ps.execute();
-
-            ResultSet rs = ps.getResultSet();
-            List<String> result = new ArrayList<String>();
-            while (rs.next()) {
-                result.add(rs.getString("bv"));
+        if (nextVideoMode != NextVideoMode.SQL) {
+            try {
+                List<String> result = nextVideoMode == NextVideoMode.TABLE
+                        ? neighborTable.lookup(bv, CoWatchIndex.RECOMMENDATIONS)
+                        : null;
+                if (result == null) {
+                    result = nextVideoMode == NextVideoMode.LSH
+                            ? minHashIndex.recommend(bv)
+                            : coWatchIndex.recommend(bv);
+                }
+                if (result.size() == 0) {
+                    log.info("No similar videos found, or the video does not exist");
+                    return null;
+                }
+                log.info("Successfully get the result of recommendNextVideo");
+                return result;
+            } catch (Exception e) {
+                log.error("Failed to get the result of recommendNextVideo");
+                e.printStackTrace();
+                return null;
             }
+        }
+        try(Connection conn = dataSource.getConnection();) {
+            List<String> result = CoWatchSql.recommend(bv, conn);
             if (result.size() == 0) {
                 log.info("No similar videos found, or the video does not exist");
                 return null;
@@ -67,68 +91,16 @@ public class RecommenderServiceImpl implements io.sustc.service.RecommenderServi
 
     @Override
     public List<String> generalRecommendations(int pageSize, int pageNum) {
-        if(Global.need_to_update == true){
-            //call update_video_aggregates() update_video_interactions_aggregates() update_video_stats();
-            try (Connection conn = dataSource.getConnection();){
-                try (CallableStatement callableStatement = conn.prepareCall("{CALL update_video_aggregates()}")) {
-                    callableStatement.execute();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
-                try (CallableStatement callableStatement = conn.prepareCall("{CALL update_video_interactions_aggregates()}")) {
-                    callableStatement.execute();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
-                try (CallableStatement callableStatement = conn.prepareCall("{CALL update_video_stats()}")) {
-                    callableStatement.execute();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-            Global.need_to_update = false;
-        }
+        // refreshes the aggregates of changed videos, or waits for / skips a running refresh
+        refreshCoordinator.ensureFresh();
         if (pageSize <= 0 || pageNum <= 0) {
             log.error("Invalid pageSize or pageNum");
             return null;
         }
 
-        List<String> recommendations = new ArrayList<>();
-        String sql = "SELECT " +
-                "v.bv, " +
-                "COALESCE(vs.like_rate, 0) + COALESCE(vs.coin_rate, 0) + COALESCE(vs.fav_rate, 0) + COALESCE(va.avg_finish, 0) + COALESCE(danmu_avg, 0) AS total_score "
-                +
-                "FROM " +
-                "videos v " +
-                "LEFT JOIN " +
-                "video_stats vs ON v.bv = vs.bv " +
-                "LEFT JOIN " +
-                "video_aggregates va ON v.bv = va.bv " +
-                "LEFT JOIN ( " +
-                "    SELECT " +
-                "        bv, " +
-                "        COUNT(*) / NULLIF(COUNT(DISTINCT mid), 0) AS danmu_avg " +
-                "    FROM " +
-                "        danmus " +
-                "    GROUP BY " +
-                "        bv " +
-                ") danmu_data ON v.bv = danmu_data.bv " +
-                "ORDER BY " +
-                "    total_score DESC " +
-                "OFFSET ? LIMIT ?";
-        try (Connection conn = dataSource.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            int offset = (pageNum - 1) * pageSize;
-            pstmt.setInt(1, offset);
-            pstmt.setInt(2, pageSize);
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    recommendations.add(rs.getString("bv"));
-                }
-            }
+        List<String> recommendations;
+        try {
+            recommendations = rankedSnapshot.page(pageSize, pageNum);
         } catch (SQLException e) {
             e.printStackTrace();
             return null;
@@ -196,11 +168,7 @@ public class RecommenderServiceImpl implements io.sustc.service.RecommenderServi
                     return null;
                 }
 
-                try (CallableStatement callableStatement = conn.prepareCall("{CALL update_video_aggregates()}")) {
-                    callableStatement.execute();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+                refreshCoordinator.ensureFresh();
                 log.info("Successfully get the result of recommendFriends");
                 return recommendedUserIds;
             }
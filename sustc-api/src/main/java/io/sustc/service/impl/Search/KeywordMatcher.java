@@ -0,0 +1,178 @@
+package io.sustc.service.impl.Search;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts the occurrences of all keywords of a query in one pass over a text,
+ * with the semantics of {@link TextMatch#count(String, String)} summed over the
+ * keywords.
+ * <p>
+ * An Aho-Corasick automaton over the folded keywords reports every occurrence
+ * of every keyword as it ends. Occurrences of one keyword end in the order they
+ * start, so remembering where each keyword may next start is enough to keep the
+ * left-to-right, non-overlapping count a regex would give. Keywords that fold to
+ * the same string are matched once and counted as often as they were given; an
+ * empty keyword matches once more than the text is long.
+ * <p>
+ * Build one per query. Counting allocates nothing, but reuses per-keyword
+ * state, so an instance must not be shared between threads.
+ */
+public class KeywordMatcher {
+    private static final int ROOT = 0;
+
+    // goto edges, an open-addressing map from (state, char) to the next state
+    private final long[] edgeKeys;
+    private final int[] edgeTargets;
+
+    // per state: failure link, pattern ending here or -1, next state on the failure chain with a pattern
+    private final int[] fail;
+    private final int[] output;
+    private final int[] outputLink;
+
+    private final int[] lengths;
+    private final int[] multiplicity;
+    private final int emptyMultiplicity;
+    // per pattern: first position of the text where it may match again
+    private final int[] nextStart;
+
+    public KeywordMatcher(String[] keywords) {
+        Map<String, Integer> patterns = new LinkedHashMap<>();
+        int empty = 0;
+        for (String keyword : keywords) {
+            String folded = TextMatch.fold(keyword);
+            if (folded.isEmpty()) {
+                empty++;
+            } else {
+                patterns.merge(folded, 1, Integer::sum);
+            }
+        }
+        emptyMultiplicity = empty;
+        lengths = new int[patterns.size()];
+        multiplicity = new int[patterns.size()];
+        nextStart = new int[patterns.size()];
+
+        int capacity = 1;
+        for (String pattern : patterns.keySet()) {
+            capacity += pattern.length();
+        }
+        fail = new int[capacity];
+        output = new int[capacity];
+        outputLink = new int[capacity];
+        Arrays.fill(output, -1);
+        Arrays.fill(outputLink, -1);
+        int edgeCapacity = Integer.highestOneBit(capacity) * 4;
+        edgeKeys = new long[edgeCapacity];
+        edgeTargets = new int[edgeCapacity];
+        Arrays.fill(edgeKeys, -1);
+
+        // build the trie, remembering how each state was reached
+        int[] parent = new int[capacity];
+        char[] label = new char[capacity];
+        int[] depth = new int[capacity];
+        int states = 1;
+        int index = 0;
+        for (Map.Entry<String, Integer> pattern : patterns.entrySet()) {
+            int state = ROOT;
+            String text = pattern.getKey();
+            for (int i = 0; i < text.length(); i++) {
+                int next = edge(state, text.charAt(i));
+                if (next < 0) {
+                    next = states++;
+                    putEdge(state, text.charAt(i), next);
+                    parent[next] = state;
+                    label[next] = text.charAt(i);
+                    depth[next] = i + 1;
+                }
+                state = next;
+            }
+            output[state] = index;
+            lengths[index] = text.length();
+            multiplicity[index] = pattern.getValue();
+            index++;
+        }
+
+        // failure links breadth first, a state's link is shallower than the state
+        Integer[] order = new Integer[states - 1];
+        for (int s = 1; s < states; s++) {
+            order[s - 1] = s;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(depth[a], depth[b]));
+        for (int s : order) {
+            if (parent[s] == ROOT) {
+                fail[s] = ROOT;
+            } else {
+                int f = fail[parent[s]];
+                int target;
+                while ((target = edge(f, label[s])) < 0 && f != ROOT) {
+                    f = fail[f];
+                }
+                fail[s] = Math.max(target, ROOT);
+            }
+            int link = fail[s];
+            outputLink[s] = output[link] >= 0 ? link : outputLink[link];
+        }
+    }
+
+    /**
+     * Occurrences of every keyword in the text, 0 for a null text.
+     */
+    public int count(String text) {
+        if (text == null) {
+            return 0;
+        }
+        int total = emptyMultiplicity * (text.length() + 1);
+        if (lengths.length == 0) {
+            return total;
+        }
+        Arrays.fill(nextStart, 0);
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            char c = TextMatch.fold(text.charAt(i));
+            int next;
+            while ((next = edge(state, c)) < 0 && state != ROOT) {
+                state = fail[state];
+            }
+            state = next < 0 ? ROOT : next;
+            for (int s = output[state] >= 0 ? state : outputLink[state]; s >= 0; s = outputLink[s]) {
+                int pattern = output[s];
+                int start = i - lengths[pattern] + 1;
+                if (start >= nextStart[pattern]) {
+                    nextStart[pattern] = i + 1;
+                    total += multiplicity[pattern];
+                }
+            }
+        }
+        return total;
+    }
+
+    private int edge(int state, char c) {
+        long key = (long) state << 16 | c;
+        int mask = edgeKeys.length - 1;
+        for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+            if (edgeKeys[slot] == key) {
+                return edgeTargets[slot];
+            }
+            if (edgeKeys[slot] == -1) {
+                return -1;
+            }
+        }
+    }
+
+    private void putEdge(int state, char c, int target) {
+        long key = (long) state << 16 | c;
+        int mask = edgeKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (edgeKeys[slot] != -1) {
+            slot = (slot + 1) & mask;
+        }
+        edgeKeys[slot] = key;
+        edgeTargets[slot] = target;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+}
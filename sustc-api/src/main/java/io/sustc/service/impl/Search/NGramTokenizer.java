@@ -0,0 +1,41 @@
+package io.sustc.service.impl.Search;
+
+import java.util.function.Consumer;
+
+/**
+ * Character n-grams, which find arbitrary substrings of Chinese text where a
+ * whitespace tokenizer finds nothing.
+ * <p>
+ * A text is indexed by its single characters and by every run of {@code n}
+ * characters. A keyword of at least {@code n} characters is looked up by its
+ * n-grams and a shorter one by its characters, so every document holding the
+ * keyword holds all of its query tokens.
+ */
+public class NGramTokenizer implements Tokenizer {
+    private final int n;
+
+    public NGramTokenizer(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n-gram length must be positive: " + n);
+        }
+        this.n = n;
+    }
+
+    @Override
+    public void tokenize(String folded, Consumer<String> sink) {
+        for (int i = 0; i < folded.length(); i++) {
+            sink.accept(folded.substring(i, i + 1));
+            if (n > 1 && i + n <= folded.length()) {
+                sink.accept(folded.substring(i, i + n));
+            }
+        }
+    }
+
+    @Override
+    public void queryTokens(String foldedKeyword, Consumer<String> sink) {
+        int length = foldedKeyword.length() < n ? 1 : n;
+        for (int i = 0; i + length <= foldedKeyword.length(); i++) {
+            sink.accept(foldedKeyword.substring(i, i + length));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.sustc.service.impl.Search;
+
+import java.util.Arrays;
+
+/**
+ * Documents holding one token, with how often they hold it. Ids are appended in
+ * increasing order, so the list stays sorted.
+ */
+final class PostingList {
+    private int[] ids = new int[4];
+    private int[] frequencies = new int[4];
+    private int size;
+
+    void add(int id, int frequency) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            frequencies = Arrays.copyOf(frequencies, size * 2);
+        }
+        ids[size] = id;
+        frequencies[size] = frequency;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int id(int index) {
+        return ids[index];
+    }
+
+    int frequency(int index) {
+        return frequencies[index];
+    }
+
+    /**
+     * How often the document holds the token, 0 when it is not listed.
+     */
+    int frequencyOf(int id) {
+        int found = Arrays.binarySearch(ids, 0, size, id);
+        return found >= 0 ? frequencies[found] : 0;
+    }
+
+    /**
+     * Position of the first id not below {@code id}, searching from {@code from}.
+     */
+    int seek(int id, int from) {
+        // gallop, then binary search the last step
+        int step = 1;
+        int low = from;
+        int high = from;
+        while (high < size && ids[high] < id) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, size);
+        int found = Arrays.binarySearch(ids, low, high, id);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    /**
+     * Ids present in every list, shortest list first for the fewest probes.
+     */
+    static int[] intersect(PostingList[] lists) {
+        lists = lists.clone();
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        PostingList shortest = lists[0];
+        int[] result = new int[shortest.size];
+        int count = 0;
+        int[] positions = new int[lists.length];
+        outer:
+        for (int i = 0; i < shortest.size; i++) {
+            int id = shortest.ids[i];
+            for (int l = 1; l < lists.length; l++) {
+                int position = lists[l].seek(id, positions[l]);
+                positions[l] = position;
+                if (position == lists[l].size) {
+                    break outer;
+                }
+                if (lists[l].ids[position] != id) {
+                    continue outer;
+                }
+            }
+            result[count++] = id;
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
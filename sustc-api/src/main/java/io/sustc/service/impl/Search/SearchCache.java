@@ -0,0 +1,142 @@
+package io.sustc.service.impl.Search;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded LRU cache of complete searchVideo rankings, so a popular query is
+ * ranked once and every page of it is served from memory.
+ * <p>
+ * A ranking is keyed by the query's folded keywords in sorted order, since the
+ * counts are summed over keywords and do not depend on their order, and by
+ * whether hidden videos were included. Any write that can change a ranking
+ * bumps an epoch and empties the cache; a ranking computed across a bump is not
+ * stored, as it may predate the write. The cache holds at most
+ * {@code sustc.search.cache.max-entries} rankings and
+ * {@code sustc.search.cache.max-results} bvs in total, evicting the least
+ * recently used rankings first. A limit of 0 turns it off.
+ */
+@Component
+public class SearchCache {
+    private final int maxEntries;
+    private final long maxResults;
+
+    // guarded by this
+    private final LinkedHashMap<String, List<String>> rankings = new LinkedHashMap<>(16, 0.75f, true);
+    private long results;
+    private long epoch;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    @Autowired
+    public SearchCache(@Value("${sustc.search.cache.max-entries:1024}") int maxEntries,
+            @Value("${sustc.search.cache.max-results:1000000}") long maxResults) {
+        this.maxEntries = maxEntries;
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Cache key of a query, the same for any order or letter case of its keywords.
+     */
+    public static String key(String[] keywords, boolean includeHidden) {
+        String[] folded = new String[keywords.length];
+        for (int i = 0; i < keywords.length; i++) {
+            folded[i] = TextMatch.fold(keywords[i]);
+        }
+        Arrays.sort(folded);
+        // length-prefixed, so no keyword can pass for two
+        StringBuilder key = new StringBuilder(includeHidden ? "H" : "P");
+        for (String keyword : folded) {
+            key.append(keyword.length()).append(':').append(keyword);
+        }
+        return key.toString();
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && maxResults > 0;
+    }
+
+    /**
+     * Epoch to pass to {@link #put}, read before computing the ranking.
+     */
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * The complete ranking of a query, or null when it has to be computed.
+     */
+    public synchronized List<String> get(String key) {
+        List<String> ranking = rankings.get(key);
+        if (ranking == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return ranking;
+    }
+
+    /**
+     * Stores a ranking computed since {@code epoch}, unless a write happened
+     * meanwhile or it would not fit.
+     */
+    public synchronized void put(String key, long epoch, List<String> ranking) {
+        if (epoch != this.epoch || !isEnabled() || ranking.size() > maxResults) {
+            return;
+        }
+        List<String> previous = rankings.put(key, Collections.unmodifiableList(ranking));
+        results += ranking.size() - (previous == null ? 0 : previous.size());
+        while (rankings.size() > maxEntries || results > maxResults) {
+            Map.Entry<String, List<String>> eldest = rankings.entrySet().iterator().next();
+            results -= eldest.getValue().size();
+            rankings.remove(eldest.getKey());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every ranking after a write to the videos, their owners or their
+     * watches.
+     */
+    public synchronized void invalidate() {
+        epoch++;
+        rankings.clear();
+        results = 0;
+    }
+
+    public synchronized int size() {
+        return rankings.size();
+    }
+
+    /**
+     * Number of bvs held over all rankings.
+     */
+    public synchronized long getResults() {
+        return results;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,19 @@
+package io.sustc.service.impl.Search;
+
+/**
+ * How the search index counts the matches of its candidates, chosen by
+ * {@code sustc.search.exactness}.
+ */
+public enum SearchExactness {
+    /**
+     * Verifies every candidate against its text, giving the counts of a full scan.
+     */
+    EXACT,
+
+    /**
+     * Estimates the count from the term frequencies of the keyword's tokens
+     * without reading the text. Cheaper, but a candidate may hold the tokens
+     * without the keyword, and overlapping occurrences count more than once.
+     */
+    APPROXIMATE,
+}
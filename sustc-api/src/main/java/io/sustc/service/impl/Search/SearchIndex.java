@@ -0,0 +1,337 @@
+package io.sustc.service.impl.Search;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.sustc.service.impl.Tools.LazySnapshot;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-process inverted index over the searchable text of every video: its title,
+ * its description and its owner's name.
+ * <p>
+ * The index is built from the database on the first search by a
+ * {@link LazySnapshot} and then kept up to date by the write paths, which call
+ * {@link #refresh(String)} once their change is committed. A changed video is
+ * re-read and appended as a new document, its old document is only marked dead,
+ * and the postings are compacted once dead documents outnumber live ones. A
+ * search intersects the postings of each keyword's tokens, so only the
+ * candidates left are counted: verified with a {@link KeywordMatcher} for the
+ * exact counts of a full scan, or estimated from the term frequencies in
+ * {@link SearchExactness#APPROXIMATE} mode.
+ */
+@Slf4j
+@Component
+public class SearchIndex {
+    private static final String LOAD_SQL = "SELECT v.bv, v.title, v.description, v.ispublic, u.name "
+            + "FROM videos v JOIN users u ON v.ownermid = u.mid";
+    private static final String LOAD_ONE_SQL = LOAD_SQL + " WHERE v.bv = ?";
+    private static final int MIN_COMPACT = 1024;
+
+    private final DataSource dataSource;
+    private final Tokenizer tokenizer;
+    private final SearchExactness exactness;
+
+    private final LazySnapshot<Index> index;
+    // serializes refreshes, so they apply in the order they read
+    private final Object refreshMonitor = new Object();
+
+    @Autowired
+    public SearchIndex(DataSource dataSource, @Value("${sustc.search.ngram:2}") int ngram,
+            @Value("${sustc.search.exactness:EXACT}") SearchExactness exactness) {
+        this(dataSource, new NGramTokenizer(ngram), exactness);
+    }
+
+    public SearchIndex(DataSource dataSource, Tokenizer tokenizer, SearchExactness exactness) {
+        this.dataSource = dataSource;
+        this.tokenizer = tokenizer;
+        this.exactness = exactness;
+        this.index = new LazySnapshot<>(dataSource, this::load);
+    }
+
+    static final class Document {
+        final String bv;
+        final String title;
+        final String description;
+        final String ownerName;
+        final boolean isPublic;
+
+        Document(String bv, String title, String description, String ownerName, boolean isPublic) {
+            this.bv = bv;
+            this.title = title == null ? null : TextMatch.fold(title);
+            this.description = description == null ? null : TextMatch.fold(description);
+            this.ownerName = ownerName == null ? null : TextMatch.fold(ownerName);
+            this.isPublic = isPublic;
+        }
+
+        int count(KeywordMatcher matcher) {
+            return matcher.count(title) + matcher.count(description) + matcher.count(ownerName);
+        }
+    }
+
+    /**
+     * The documents and their postings, changed in place by the refreshes.
+     */
+    private final class Index {
+        final List<Document> documents = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+        final Map<String, PostingList> postings = new HashMap<>();
+        int dead;
+
+        void add(Document doc) {
+            int id = documents.size();
+            documents.add(doc);
+            ids.put(doc.bv, id);
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String field : new String[] { doc.title, doc.description, doc.ownerName }) {
+                if (field != null) {
+                    tokenizer.tokenize(field, token -> frequencies.merge(token, 1, Integer::sum));
+                }
+            }
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), t -> new PostingList()).add(id, entry.getValue());
+            }
+        }
+
+        void remove(String bv) {
+            Integer id = ids.remove(bv);
+            if (id != null) {
+                documents.set(id, null);
+                dead++;
+            }
+        }
+
+        /**
+         * Renumbers the live documents and rebuilds their postings, leaving out the
+         * dead ones.
+         */
+        void compact() {
+            List<Document> live = new ArrayList<>(documents.size() - dead);
+            for (Document doc : documents) {
+                if (doc != null) {
+                    live.add(doc);
+                }
+            }
+            documents.clear();
+            ids.clear();
+            postings.clear();
+            dead = 0;
+            for (Document doc : live) {
+                add(doc);
+            }
+        }
+    }
+
+    /**
+     * Matches of every keyword in every visible video, summed per video. Videos
+     * without a match are left out, as are hidden ones unless
+     * {@code includeHidden} is set.
+     */
+    public Map<String, Integer> search(String[] keywords, boolean includeHidden) throws SQLException {
+        return index.read(loaded -> {
+            Map<String, Integer> countMap = new HashMap<>();
+            if (exactness == SearchExactness.EXACT) {
+                count(loaded, keywords, includeHidden, countMap);
+            } else {
+                for (String keyword : keywords) {
+                    estimate(loaded, TextMatch.fold(keyword), includeHidden, countMap);
+                }
+            }
+            return countMap;
+        });
+    }
+
+    /**
+     * Counts all keywords at once in the documents that may hold any of them.
+     * A document holding none of a keyword's tokens counts 0 for it anyway, so
+     * verifying the union of the candidates keeps every count exact.
+     */
+    private void count(Index loaded, String[] keywords, boolean includeHidden, Map<String, Integer> countMap) {
+        List<Document> documents = loaded.documents;
+        BitSet candidates = new BitSet(documents.size());
+        for (String keyword : keywords) {
+            Map<String, Integer> tokens = queryTokens(TextMatch.fold(keyword));
+            if (tokens.isEmpty()) {
+                // nothing to narrow by, every document is a candidate
+                candidates.set(0, documents.size());
+                break;
+            }
+            PostingList[] lists = postingsOf(loaded, tokens);
+            if (lists != null) {
+                for (int id : PostingList.intersect(lists)) {
+                    candidates.set(id);
+                }
+            }
+        }
+        KeywordMatcher matcher = new KeywordMatcher(keywords);
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            Document doc = documents.get(id);
+            if (doc != null && (doc.isPublic || includeHidden)) {
+                addCount(countMap, doc.bv, doc.count(matcher));
+            }
+        }
+    }
+
+    private void estimate(Index loaded, String folded, boolean includeHidden, Map<String, Integer> countMap) {
+        Map<String, Integer> tokens = queryTokens(folded);
+        if (tokens.isEmpty()) {
+            // nothing to estimate from, count this keyword exactly
+            KeywordMatcher matcher = new KeywordMatcher(new String[] { folded });
+            for (Document doc : loaded.documents) {
+                if (doc != null && (doc.isPublic || includeHidden)) {
+                    addCount(countMap, doc.bv, doc.count(matcher));
+                }
+            }
+            return;
+        }
+        PostingList[] lists = postingsOf(loaded, tokens);
+        if (lists == null) {
+            return;
+        }
+        int[] needed = new int[lists.length];
+        int i = 0;
+        for (int times : tokens.values()) {
+            needed[i++] = times;
+        }
+        for (int id : PostingList.intersect(lists)) {
+            Document doc = loaded.documents.get(id);
+            if (doc != null && (doc.isPublic || includeHidden)) {
+                addCount(countMap, doc.bv, estimate(id, lists, needed));
+            }
+        }
+    }
+
+    /**
+     * Query tokens of a folded keyword, with how many times the keyword holds each.
+     */
+    private Map<String, Integer> queryTokens(String folded) {
+        Map<String, Integer> tokens = new LinkedHashMap<>();
+        tokenizer.queryTokens(folded, token -> tokens.merge(token, 1, Integer::sum));
+        return tokens;
+    }
+
+    /**
+     * Posting lists of the tokens in order, or null when a token is in no document.
+     */
+    private static PostingList[] postingsOf(Index loaded, Map<String, Integer> tokens) {
+        PostingList[] lists = new PostingList[tokens.size()];
+        int i = 0;
+        for (String token : tokens.keySet()) {
+            PostingList list = loaded.postings.get(token);
+            if (list == null) {
+                return null;
+            }
+            lists[i++] = list;
+        }
+        return lists;
+    }
+
+    /**
+     * Occurrences the term frequencies allow for: each token must appear once per
+     * time the keyword holds it.
+     */
+    private static int estimate(int id, PostingList[] lists, int[] needed) {
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < lists.length; i++) {
+            estimate = Math.min(estimate, lists[i].frequencyOf(id) / needed[i]);
+        }
+        return estimate;
+    }
+
+    private static void addCount(Map<String, Integer> countMap, String bv, int matches) {
+        if (matches > 0) {
+            countMap.merge(bv, matches, Integer::sum);
+        }
+    }
+
+    /**
+     * Re-reads a video after a committed change, dropping it when it is gone.
+     * Does nothing while the index is neither built nor being built, as the next
+     * build reads the change anyway.
+     */
+    public void refresh(String bv) {
+        refresh(Collections.singletonList(bv));
+    }
+
+    public void refresh(Collection<String> bvs) {
+        if (bvs.isEmpty()) {
+            return;
+        }
+        synchronized (refreshMonitor) {
+            if (!index.isTracking()) {
+                return;
+            }
+            List<String> changed = new ArrayList<>(bvs);
+            List<Document> loaded = new ArrayList<>();
+            try (Connection conn = dataSource.getConnection();
+                    PreparedStatement ps = conn.prepareStatement(LOAD_ONE_SQL)) {
+                for (String bv : changed) {
+                    ps.setString(1, bv);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        loaded.add(rs.next() ? read(rs) : null);
+                    }
+                }
+            } catch (SQLException e) {
+                // a document we cannot re-read may be stale, rebuild on the next search instead
+                log.error("Refresh search index failed, dropping it", e);
+                invalidate();
+                return;
+            }
+            // the re-read follows the commit, so replaying it onto a newer build is harmless
+            index.update(target -> {
+                for (int i = 0; i < changed.size(); i++) {
+                    target.remove(changed.get(i));
+                    if (loaded.get(i) != null) {
+                        target.add(loaded.get(i));
+                    }
+                }
+                if (target.dead > MIN_COMPACT && target.dead > target.documents.size() - target.dead) {
+                    target.compact();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops the whole index, for when the tables are reloaded. The next search
+     * builds it again.
+     */
+    public void invalidate() {
+        index.invalidate();
+    }
+
+    private Index load(Connection conn) throws SQLException {
+        long start = System.nanoTime();
+        Index loaded = new Index();
+        try (PreparedStatement ps = conn.prepareStatement(LOAD_SQL);
+                ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                loaded.add(read(rs));
+            }
+        }
+        log.info("Built search index: {} videos in {} ms", loaded.documents.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        return loaded;
+    }
+
+    private static Document read(ResultSet rs) throws SQLException {
+        return new Document(rs.getString("bv"), rs.getString("title"), rs.getString("description"),
+                rs.getString("name"), rs.getBoolean("ispublic"));
+    }
+}
@@ -0,0 +1,24 @@
+package io.sustc.service.impl.Search;
+
+/**
+ * How searchVideo finds the matching videos, chosen by {@code sustc.search.mode}.
+ */
+public enum SearchMode {
+    /**
+     * Reads every visible video once and counts the matches of all keywords in
+     * that single pass, in Java.
+     */
+    SCAN,
+
+    /**
+     * Narrows each keyword to candidates with the in-memory {@link SearchIndex}
+     * and counts the matches of those only.
+     */
+    INDEX,
+
+    /**
+     * Matches, counts, ranks and pages in one PostgreSQL statement over the
+     * {@code pg_trgm} indexes, keeping nothing in memory between requests.
+     */
+    TRGM,
+}
@@ -0,0 +1,66 @@
+package io.sustc.service.impl.Search;
+
+/**
+ * Keyword matching with the semantics searchVideo has always had, that of
+ * {@code Pattern.compile(Pattern.quote(keyword), Pattern.CASE_INSENSITIVE)}:
+ * only ASCII letters fold case, matches do not overlap, and an empty keyword
+ * matches at every position.
+ */
+public final class TextMatch {
+    private TextMatch() {
+    }
+
+    public static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    public static String fold(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = text.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    chars[j] = fold(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Counts the occurrences of a folded keyword in a text, scanning left to right
+     * and resuming after each match. A null text has none.
+     */
+    public static int count(String text, String foldedKeyword) {
+        if (text == null) {
+            return 0;
+        }
+        int n = text.length();
+        int m = foldedKeyword.length();
+        if (m == 0) {
+            return n + 1;
+        }
+        char first = foldedKeyword.charAt(0);
+        int count = 0;
+        int i = 0;
+        while (i <= n - m) {
+            if (fold(text.charAt(i)) == first && matchesAt(text, i, foldedKeyword)) {
+                count++;
+                i += m;
+            } else {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean matchesAt(String text, int offset, String foldedKeyword) {
+        for (int j = 1; j < foldedKeyword.length(); j++) {
+            if (fold(text.charAt(offset + j)) != foldedKeyword.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
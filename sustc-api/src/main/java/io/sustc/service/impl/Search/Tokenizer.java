@@ -0,0 +1,20 @@
+package io.sustc.service.impl.Search;
+
+import java.util.function.Consumer;
+
+/**
+ * Splits a text into the tokens the search index keeps posting lists for.
+ */
+public interface Tokenizer {
+    /**
+     * Emits every token of a text already folded by {@link TextMatch#fold(String)},
+     * once per occurrence so the index can keep term frequencies.
+     */
+    void tokenize(String folded, Consumer<String> sink);
+
+    /**
+     * Emits the tokens a document must contain to hold the folded keyword. An
+     * empty result means the tokens cannot narrow the search.
+     */
+    void queryTokens(String foldedKeyword, Consumer<String> sink);
+}
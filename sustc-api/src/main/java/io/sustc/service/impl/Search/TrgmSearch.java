@@ -0,0 +1,102 @@
+package io.sustc.service.impl.Search;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Answers searchVideo entirely inside PostgreSQL, keeping no state in the
+ * application.
+ * <p>
+ * Each keyword becomes an {@code ILIKE} pattern that the {@code pg_trgm} GIN
+ * indexes on {@code videos.title}, {@code videos.description} and
+ * {@code users.name} turn into a bitmap scan. The candidates are then counted
+ * with the same semantics as {@link TextMatch}: ASCII letters are folded with
+ * {@code translate}, and {@code replace} removes non-overlapping occurrences
+ * from left to right. Ranking and the page itself come from the same statement.
+ */
+public class TrgmSearch {
+    private static final String UPPER = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final String LOWER = "abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * One page of the videos matching the keywords, by match count and then view
+     * count.
+     */
+    public static List<String> search(String[] keywords, boolean includeHidden, int pageSize, int pageNum,
+            Connection conn) throws SQLException {
+        String[] folded = new String[keywords.length];
+        Set<String> patterns = new LinkedHashSet<>();
+        for (int i = 0; i < keywords.length; i++) {
+            folded[i] = TextMatch.fold(keywords[i]);
+            patterns.add("%" + escapeLike(folded[i]) + "%");
+        }
+        if (patterns.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        StringBuilder candidates = new StringBuilder();
+        for (int i = 0; i < patterns.size(); i++) {
+            if (i > 0) {
+                candidates.append(" UNION ");
+            }
+            candidates.append("SELECT v.bv FROM videos v WHERE v.title ILIKE ? OR v.description ILIKE ? ")
+                    .append("UNION SELECT v.bv FROM videos v JOIN users u ON v.ownermid = u.mid WHERE u.name ILIKE ?");
+        }
+        String sql = "WITH k AS (SELECT unnest(?::text[]) AS kw), "
+                + "candidates AS (" + candidates + "), "
+                + "matches AS ("
+                + "SELECT v.bv, SUM(" + count("v.title") + " + " + count("v.description") + " + " + count("u.name")
+                + ") AS matches "
+                + "FROM candidates c JOIN videos v ON v.bv = c.bv JOIN users u ON v.ownermid = u.mid CROSS JOIN k "
+                + "WHERE v.ispublic OR ? "
+                + "GROUP BY v.bv) "
+                + "SELECT m.bv FROM matches m "
+                + "LEFT JOIN LATERAL (SELECT COUNT(w.mid) AS views "
+                + "FROM user_video_watch w WHERE w.bv = m.bv) w ON TRUE "
+                + "WHERE m.matches > 0 "
+                + "ORDER BY m.matches DESC, w.views DESC, m.bv "
+                + "LIMIT ? OFFSET ?";
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int index = 1;
+            ps.setArray(index++, conn.createArrayOf("text", folded));
+            for (String pattern : patterns) {
+                ps.setString(index++, pattern);
+                ps.setString(index++, pattern);
+                ps.setString(index++, pattern);
+            }
+            ps.setBoolean(index++, includeHidden);
+            ps.setInt(index++, pageSize);
+            ps.setLong(index, (long) (pageNum - 1) * pageSize);
+            List<String> page = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    page.add(rs.getString("bv"));
+                }
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Occurrences of the folded keyword {@code k.kw} in a column, 0 when it is
+     * null and one more than its length for an empty keyword, as a regex would
+     * count them.
+     */
+    private static String count(String column) {
+        return "(CASE WHEN " + column + " IS NULL THEN 0 "
+                + "WHEN k.kw = '' THEN char_length(" + column + ") + 1 "
+                + "ELSE (char_length(" + column + ") - char_length(replace(translate(" + column + ", '" + UPPER
+                + "', '" + LOWER + "'), k.kw, ''))) / char_length(k.kw) END)";
+    }
+
+    private static String escapeLike(String keyword) {
+        return keyword.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,147 @@
+package io.sustc.service.impl.Tools;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps {@code video_aggregates}, {@code video_interactions_aggregates} and
+ * {@code video_stats} up to date by recomputing only the videos that changed.
+ * <p>
+ * Changes to a video's watches, interactions or duration are marked through
+ * {@link RefreshCoordinator}, which also decides when to call {@link #refresh()}.
+ * A refresh recomputes the rows of the dirty videos with one set-based statement
+ * per table, using the same formulas as the {@code update_video_*} functions in
+ * {@code constructor.sql}, and removes rows whose video has nothing left to
+ * aggregate. The first refresh after startup or an import covers every video,
+ * since the tables may be stale or empty.
+ */
+@Slf4j
+@Component
+public class AggregateRefresher {
+    // %s is the filter on the videos to refresh, rows are always aliased v
+    private static final String[] REFRESH_SQL = {
+            "INSERT INTO video_aggregates (bv, avg_finish) "
+                    + "SELECT v.bv, AVG(uvw.watch_time) / NULLIF(v.duration, 0) "
+                    + "FROM videos v JOIN user_video_watch uvw ON v.bv = uvw.bv "
+                    + "WHERE %s GROUP BY v.bv "
+                    + "ON CONFLICT (bv) DO UPDATE SET avg_finish = EXCLUDED.avg_finish",
+            "DELETE FROM video_aggregates v WHERE %s AND NOT EXISTS ("
+                    + "SELECT 1 FROM videos w JOIN user_video_watch uvw ON w.bv = uvw.bv WHERE w.bv = v.bv)",
+
+            "INSERT INTO video_interactions_aggregates (bv, like_count, coin_count, fav_count) "
+                    + "SELECT v.bv, COUNT(uvi.is_liked), COUNT(uvi.is_coined), COUNT(uvi.is_favorited) "
+                    + "FROM videos v JOIN user_video_interaction uvi ON v.bv = uvi.bv "
+                    + "WHERE %s GROUP BY v.bv "
+                    + "ON CONFLICT (bv) DO UPDATE SET like_count = EXCLUDED.like_count, "
+                    + "coin_count = EXCLUDED.coin_count, fav_count = EXCLUDED.fav_count",
+            "DELETE FROM video_interactions_aggregates v WHERE %s AND NOT EXISTS ("
+                    + "SELECT 1 FROM videos w JOIN user_video_interaction uvi ON w.bv = uvi.bv WHERE w.bv = v.bv)",
+
+            "INSERT INTO video_stats (bv, like_rate, coin_rate, fav_rate) "
+                    + "SELECT v.bv, COALESCE(via.like_count, 0) / NULLIF(via.like_count + vaa.avg_finish, 0), "
+                    + "COALESCE(via.coin_count, 0) / NULLIF(via.coin_count + vaa.avg_finish, 0), "
+                    + "COALESCE(via.fav_count, 0) / NULLIF(via.fav_count + vaa.avg_finish, 0) "
+                    + "FROM videos v JOIN video_interactions_aggregates via ON v.bv = via.bv "
+                    + "JOIN video_aggregates vaa ON v.bv = vaa.bv "
+                    + "WHERE %s "
+                    + "ON CONFLICT (bv) DO UPDATE SET like_rate = EXCLUDED.like_rate, "
+                    + "coin_rate = EXCLUDED.coin_rate, fav_rate = EXCLUDED.fav_rate",
+            "DELETE FROM video_stats v WHERE %s AND NOT EXISTS ("
+                    + "SELECT 1 FROM videos w JOIN video_interactions_aggregates via ON w.bv = via.bv "
+                    + "JOIN video_aggregates vaa ON w.bv = vaa.bv WHERE w.bv = v.bv)",
+    };
+
+    private final DataSource dataSource;
+
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean fullRefresh = new AtomicBoolean(true);
+
+    @Autowired
+    public AggregateRefresher(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void markDirty(String bv) {
+        if (bv != null) {
+            dirty.add(bv);
+        }
+    }
+
+    public void markDirty(Collection<String> bvs) {
+        for (String bv : bvs) {
+            markDirty(bv);
+        }
+    }
+
+    /**
+     * Makes the next refresh recompute every video, e.g. after a bulk import.
+     */
+    public void markAllDirty() {
+        fullRefresh.set(true);
+    }
+
+    /**
+     * Recomputes the aggregates of the videos marked since the last refresh, in one
+     * transaction, and returns those videos, or null when it covered all of them.
+     * Marks taken by a failed refresh are put back.
+     */
+    public Collection<String> refresh() throws SQLException {
+        long start = System.currentTimeMillis();
+        boolean full = fullRefresh.getAndSet(false);
+        List<String> bvs = new ArrayList<>();
+        for (Iterator<String> it = dirty.iterator(); it.hasNext();) {
+            bvs.add(it.next());
+            it.remove();
+        }
+        if (!full && bvs.isEmpty()) {
+            return bvs;
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Array filter = full ? null : conn.createArrayOf("varchar", bvs.toArray());
+                for (String sql : REFRESH_SQL) {
+                    try (PreparedStatement ps = conn.prepareStatement(
+                            String.format(sql, full ? "TRUE" : "v.bv = ANY(?)"))) {
+                        if (!full) {
+                            ps.setArray(1, filter);
+                        }
+                        ps.executeUpdate();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            if (full) {
+                fullRefresh.set(true);
+            }
+            dirty.addAll(bvs);
+            throw e;
+        }
+        log.info("Refreshed aggregates of {} in {}ms", full ? "all videos" : bvs.size() + " videos",
+                System.currentTimeMillis() - start);
+        return full ? null : bvs;
+    }
+}
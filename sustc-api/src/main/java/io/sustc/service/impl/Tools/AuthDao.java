@@ -0,0 +1,73 @@
+package io.sustc.service.impl.Tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import io.sustc.dto.UserRecord.Identity;
+import io.sustc.service.impl.Tools.PrincipalCache.Principal;
+
+/**
+ * Loads what authentication needs about a user in one round trip.
+ * <p>
+ * A principal comes from a single indexed query joining {@code auth_info} and
+ * {@code users}. Statements are prepared per call and closed with it; pgjdbc
+ * keeps the server-side prepared statement on the connection, so a pooled
+ * connection still parses each query once.
+ */
+public class AuthDao {
+    private static final String PRINCIPAL_SQL = "SELECT a.mid, a.password, a.qq, a.wechat, u.identity "
+            + "FROM auth_info a LEFT JOIN users u ON u.mid = a.mid WHERE a.";
+    private static final String BY_MID = PRINCIPAL_SQL + "mid = ?";
+    private static final String BY_QQ = PRINCIPAL_SQL + "qq = ?";
+    private static final String BY_WECHAT = PRINCIPAL_SQL + "wechat = ?";
+    private static final String IDENTITY = "SELECT identity FROM users WHERE mid = ?";
+
+    public static Principal findByMid(long mid, Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(BY_MID)) {
+            ps.setLong(1, mid);
+            return readPrincipal(ps);
+        }
+    }
+
+    public static Principal findByQq(String qq, Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(BY_QQ)) {
+            ps.setString(1, qq);
+            return readPrincipal(ps);
+        }
+    }
+
+    public static Principal findByWechat(String wechat, Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(BY_WECHAT)) {
+            ps.setString(1, wechat);
+            return readPrincipal(ps);
+        }
+    }
+
+    /**
+     * Identity of a user, whether or not they have an {@code auth_info} row.
+     */
+    public static Identity findIdentity(long mid, Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(IDENTITY)) {
+            ps.setLong(1, mid);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? parseIdentity(rs.getString("identity")) : null;
+            }
+        }
+    }
+
+    private static Principal readPrincipal(PreparedStatement ps) throws SQLException {
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            return new Principal(rs.getLong("mid"), rs.getString("password"), rs.getString("qq"),
+                    rs.getString("wechat"), parseIdentity(rs.getString("identity")));
+        }
+    }
+
+    private static Identity parseIdentity(String identity) {
+        return identity == null ? null : Identity.valueOf(identity.toUpperCase());
+    }
+}
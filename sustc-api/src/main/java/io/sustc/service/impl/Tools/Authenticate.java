@@ -7,46 +7,43 @@ import java.sql.SQLException;
 import io.sustc.dto.AuthInfo;
 import io.sustc.dto.PostVideoReq;
 import io.sustc.dto.UserRecord.Identity;
+import io.sustc.service.impl.Tools.PrincipalCache.Principal;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class Authenticate {
-    public static Identity authenticate(AuthInfo auth, Connection conn) throws SQLException {
-        String midsql = "SELECT * FROM auth_info WHERE mid = ? or qq = ? or wechat = ?";
-        PreparedStatement ps = conn.prepareStatement(midsql);
-        ps.setLong(1, auth.getMid());
-        ps.setString(2, auth.getQq());
-        ps.setString(3, auth.getWechat());
-        ResultSet rs = ps.executeQuery();
+    private static final PrincipalCache principals = new PrincipalCache(65_536);
+
+    /**
+     * The cache behind every lookup here, callers that change users invalidate it.
+     */
+    public static PrincipalCache principals() {
+        return principals;
+    }
 
-        if(!rs.next()){
+    public static Identity authenticate(AuthInfo auth, Connection conn) throws SQLException {
+        Principal principal = resolve(auth, conn);
+        if (principal == null) {
             //log.error("Authentication failed: mid not found in auth_info");
             return null;
         }
-        if (auth.getQq() != null && !auth.getQq().equals(rs.getString("qq"))) {
+        if (auth.getQq() != null && !auth.getQq().equals(principal.getQq())) {
             //log.error("Authentication failed: qq not match");
             return null;
         }
-        if (auth.getWechat() != null && !auth.getWechat().equals(rs.getString("wechat"))) {
+        if (auth.getWechat() != null && !auth.getWechat().equals(principal.getWechat())) {
             //log.error("Authentication failed: wechat not match");
             return null;
         }
-        long mid = getMid(auth, conn);
-        return checkIdentity(mid, conn);
-        // return null;
+        return principal.getIdentity();
     }
 
     public static Identity checkIdentity(long mid, Connection conn) throws SQLException {
-        String sql = "SELECT * FROM users WHERE mid = ?;";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setLong(1, mid);
-        ResultSet rs = ps.executeQuery();
-        if (!rs.next()) {
-            //log.error("Authentication failed: could not found user");
-            return null;
+        Principal principal = principals.getByMid(mid);
+        if (principal != null) {
+            return principal.getIdentity();
         }
-        //log.info("Authentication success: mid {} is {}", mid, rs.getString("identity").toUpperCase());
-        return Identity.valueOf(rs.getString("identity").toUpperCase());
+        return AuthDao.findIdentity(mid, conn);
     }
 
     public static int videoAuthenticate(PostVideoReq req, AuthInfo auth, Connection conn) throws SQLException {
@@ -74,30 +71,49 @@ public class Authenticate {
         }
     }
     public static long getMid(AuthInfo auth, Connection conn){
+        if(auth.getMid() != 0){
+            return auth.getMid();
+        }
         try{
-            String pattern = "";
-            if(auth.getMid() != 0){
-                return auth.getMid();
-            }else if(auth.getQq() != null){
-                pattern = auth.getQq();
-            }else if(auth.getWechat() != null){
-                pattern = auth.getWechat();
-            }else{
-                return -1;
-            }
-            String sql = "SELECT * FROM auth_info WHERE qq = ? OR wechat = ?";
-            PreparedStatement ps = conn.prepareStatement(sql);
-            ps.setString(1, pattern);
-            ps.setString(2, pattern);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                return rs.getLong("mid");
-            } else {
-                return -1;
-            }
+            Principal principal = resolve(auth, conn);
+            return principal == null ? -1 : principal.getMid();
         }catch(Exception e){
             e.printStackTrace();
             return -1;
         }
     }
+
+    /**
+     * Finds the user by mid, or by qq or wechat when no mid is given, from the cache
+     * or else through {@link AuthDao}.
+     */
+    private static Principal resolve(AuthInfo auth, Connection conn) throws SQLException {
+        long generation = principals.generation();
+        Principal loaded;
+        if (auth.getMid() != 0) {
+            Principal cached = principals.getByMid(auth.getMid());
+            if (cached != null) {
+                return cached;
+            }
+            loaded = AuthDao.findByMid(auth.getMid(), conn);
+        } else if (auth.getQq() != null) {
+            Principal cached = principals.getByQq(auth.getQq());
+            if (cached != null) {
+                return cached;
+            }
+            loaded = AuthDao.findByQq(auth.getQq(), conn);
+        } else if (auth.getWechat() != null) {
+            Principal cached = principals.getByWechat(auth.getWechat());
+            if (cached != null) {
+                return cached;
+            }
+            loaded = AuthDao.findByWechat(auth.getWechat(), conn);
+        } else {
+            return null;
+        }
+        if (loaded != null) {
+            principals.put(loaded, generation);
+        }
+        return loaded;
+    }
 }
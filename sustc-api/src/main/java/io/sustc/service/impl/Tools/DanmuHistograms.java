@@ -0,0 +1,185 @@
+package io.sustc.service.impl.Tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.sustc.dto.DanmuRecord;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Number of danmus in every 10-second bucket of every video, so hotspots and
+ * danmu density are read from a few hundred ints instead of every danmu row.
+ * <p>
+ * An import builds the histograms from the records it writes, between
+ * {@link #beginImport()} and {@link #finishImport()}. sendDanmu announces its
+ * danmu before the insert and counts it once committed, deleteAccount does the
+ * same to take off the user's danmus, and deleteVideo drops the histogram of
+ * the video. Histograms that were never built, or whose import
+ * failed, are loaded from {@code danmus} on first use by a {@link LazySnapshot}.
+ */
+@Slf4j
+@Component
+public class DanmuHistograms {
+    private static final String LOAD_SQL = "SELECT bv, time, COUNT(*) AS danmus FROM danmus GROUP BY bv, time";
+    private static final String SEEN_SQL = "SELECT 1 FROM danmus WHERE id = ?";
+    private static final String POSTED_SQL = "SELECT 1 FROM danmus WHERE mid = ? LIMIT 1";
+    public static final int BUCKET_SECONDS = 10;
+
+    private final LazySnapshot<Map<String, int[]>> histograms;
+    // guarded by this, filled by a running import and published when it finishes
+    private Map<String, int[]> importing;
+
+    @Autowired
+    public DanmuHistograms(DataSource dataSource) {
+        this.histograms = new LazySnapshot<>(dataSource, DanmuHistograms::load);
+    }
+
+    /**
+     * Bucket of a danmu time, as getHotspot has always computed it.
+     */
+    public static int bucket(float time) {
+        return (int) (time / BUCKET_SECONDS);
+    }
+
+    /**
+     * Danmu counts of the first {@code buckets} buckets of a video, 0 where it has
+     * none.
+     */
+    public int[] histogram(String bv, int buckets) throws SQLException {
+        return histograms.read(loaded -> {
+            int[] counts = loaded.get(bv);
+            return counts == null ? new int[buckets] : Arrays.copyOf(counts, buckets);
+        });
+    }
+
+    /**
+     * Announces a danmu about to be inserted, to be passed to
+     * {@link #add(LazySnapshot.Change, long, String, float)} once committed, or
+     * a user's danmus about to be deleted, to be passed to
+     * {@link #removeDanmus(LazySnapshot.Change, long, List, List)}.
+     */
+    public LazySnapshot.Change begin() {
+        return histograms.begin();
+    }
+
+    /**
+     * Counts a committed danmu.
+     */
+    public void add(LazySnapshot.Change change, long id, String bv, float time) {
+        histograms.apply(change, loaded -> increment(loaded, bv, bucket(time)), snapshot -> {
+            try (PreparedStatement ps = snapshot.prepareStatement(SEEN_SQL)) {
+                ps.setLong(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes off the committed deletion of a user's danmus, given as the video and
+     * time of each.
+     */
+    public void removeDanmus(LazySnapshot.Change change, long mid, List<String> bvs, List<Float> times) {
+        histograms.apply(change, loaded -> {
+            for (int i = 0; i < bvs.size(); i++) {
+                int[] counts = loaded.get(bvs.get(i));
+                int bucket = bucket(times.get(i));
+                if (counts != null && bucket < counts.length && counts[bucket] > 0) {
+                    counts[bucket]--;
+                }
+            }
+        }, snapshot -> {
+            // the snapshot holds the deletion if it holds none of the user's danmus
+            try (PreparedStatement ps = snapshot.prepareStatement(POSTED_SQL)) {
+                ps.setLong(1, mid);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return !rs.next();
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the danmus of a deleted video.
+     */
+    public void removeVideo(String bv) {
+        histograms.update(loaded -> loaded.remove(bv));
+    }
+
+    /**
+     * Drops the histograms and starts collecting the danmus of an import.
+     */
+    public synchronized void beginImport() {
+        histograms.invalidate();
+        importing = new HashMap<>();
+    }
+
+    /**
+     * Counts a batch of imported danmus.
+     */
+    public synchronized void addImported(List<DanmuRecord> batch) {
+        if (importing != null) {
+            for (DanmuRecord danmu : batch) {
+                increment(importing, danmu.getBv(), bucket(danmu.getTime()));
+            }
+        }
+    }
+
+    /**
+     * Publishes the histograms of an import that completed.
+     */
+    public synchronized void finishImport() {
+        histograms.replace(importing);
+        importing = null;
+    }
+
+    /**
+     * Drops every histogram, for when the tables are emptied or an import failed.
+     */
+    public synchronized void invalidate() {
+        histograms.invalidate();
+        importing = null;
+    }
+
+    private static Map<String, int[]> load(Connection conn) throws SQLException {
+        long start = System.currentTimeMillis();
+        Map<String, int[]> loaded = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(LOAD_SQL);
+                ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String bv = rs.getString("bv");
+                int bucket = bucket(rs.getFloat("time"));
+                int[] counts = loaded.get(bv);
+                if (counts == null || counts.length <= bucket) {
+                    counts = counts == null ? new int[bucket + 1] : Arrays.copyOf(counts, bucket + 1);
+                    loaded.put(bv, counts);
+                }
+                counts[bucket] += rs.getInt("danmus");
+            }
+        }
+        log.info("Loaded danmu histograms of {} videos in {} ms", loaded.size(), System.currentTimeMillis() - start);
+        return loaded;
+    }
+
+    private static void increment(Map<String, int[]> target, String bv, int bucket) {
+        int[] counts = target.get(bv);
+        if (counts == null || counts.length <= bucket) {
+            int length = counts == null ? bucket + 1 : Math.max(bucket + 1, counts.length * 2);
+            counts = counts == null ? new int[length] : Arrays.copyOf(counts, length);
+            target.put(bv, counts);
+        }
+        counts[bucket]++;
+    }
+}
@@ -0,0 +1,105 @@
+package io.sustc.service.impl.Tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hands out danmu ids from blocks reserved on {@code danmus_id_seq}, so rows can
+ * be written with known ids instead of reading generated keys back.
+ * <p>
+ * A block is reserved by moving the sequence forward with {@code setval} under a
+ * transaction-level advisory lock, which keeps concurrent reservations from
+ * overlapping. Writers that rely on the column default still draw from the same
+ * sequence, but are not covered by the lock, so every danmu insert of this
+ * service goes through the allocator.
+ * <p>
+ * Single ids are reserved on the caller's connection, so a writer that already
+ * holds one never waits on the pool for another while other writers wait on it.
+ */
+@Component
+public class DanmuIdAllocator {
+    private static final int BLOCK_SIZE = 64;
+
+    private final DataSource dataSource;
+
+    // current block for single ids, guarded by this
+    private long next = 1;
+    private long end = 0;
+
+    @Autowired
+    public DanmuIdAllocator(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Returns one id, reserving a new block on {@code conn} when the current one
+     * is used up.
+     */
+    public synchronized long nextId(Connection conn) throws SQLException {
+        if (next > end) {
+            next = reserve(conn, BLOCK_SIZE);
+            end = next + BLOCK_SIZE - 1;
+        }
+        return next++;
+    }
+
+    /**
+     * Reserves {@code count} consecutive ids.
+     *
+     * @return the first id of the block
+     */
+    public long reserve(int count) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return reserve(conn, count);
+        }
+    }
+
+    /**
+     * Reserves {@code count} consecutive ids on the given connection. In
+     * autocommit this takes a short transaction of its own, otherwise the lock
+     * is held until the caller's transaction ends.
+     *
+     * @return the first id of the block
+     */
+    public long reserve(Connection conn, int count) throws SQLException {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive: " + count);
+        }
+        boolean autoCommit = conn.getAutoCommit();
+        if (autoCommit) {
+            conn.setAutoCommit(false);
+        }
+        try (PreparedStatement lock = conn.prepareStatement(
+                "SELECT pg_advisory_xact_lock(hashtext('danmus_id_seq'))");
+                PreparedStatement ps = conn.prepareStatement(
+                        "SELECT setval('danmus_id_seq', nextval('danmus_id_seq') + ? - 1)")) {
+            lock.execute();
+            ps.setInt(1, count);
+            long last;
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                last = rs.getLong(1);
+            }
+            if (autoCommit) {
+                conn.commit();
+            }
+            return last - count + 1;
+        } catch (SQLException e) {
+            if (autoCommit) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            if (autoCommit) {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package io.sustc.service.impl.Tools;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.sql.DataSource;
+
+/**
+ * State loaded from the database on first use and then kept current by the
+ * write paths, shared by the in-memory caches.
+ * <p>
+ * Changes are applied once committed. One that is harmless to apply twice, such
+ * as forgetting a deleted video, goes through {@link #update(Update)}. One that
+ * is not, such as counting a new danmu, is announced with {@link #begin()}
+ * before it commits and applied through
+ * {@link #apply(Change, Update, Probe)}, with a {@link Probe} telling whether a
+ * snapshot of the tables already holds it.
+ * <p>
+ * A load reads in one REPEATABLE READ transaction, and the changes applied
+ * while it runs are replayed onto what it read rather than making it start
+ * over, so it finishes however many writes go on. The only ones left out are
+ * announced changes its snapshot already holds. Those begun before the
+ * snapshot was taken are waited for, without holding any table lock, and then
+ * probed; those begun after cannot be in it.
+ */
+public final class LazySnapshot<T> {
+    /**
+     * Reads the whole state in the given transaction.
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        T load(Connection conn) throws SQLException;
+    }
+
+    /**
+     * A committed change, applied to the current state and replayed onto one
+     * being loaded.
+     */
+    @FunctionalInterface
+    public interface Update<T> {
+        void apply(T state);
+    }
+
+    @FunctionalInterface
+    public interface Reader<T, R> {
+        R read(T state);
+    }
+
+    /**
+     * Whether the snapshot a load read from already holds a change.
+     */
+    @FunctionalInterface
+    public interface Probe {
+        boolean seen(Connection snapshot) throws SQLException;
+    }
+
+    /**
+     * Compares the state kept with one just loaded, neither of which may be kept.
+     */
+    @FunctionalInterface
+    public interface Comparison<T, R> {
+        R compare(T kept, T loaded);
+    }
+
+    /**
+     * A change announced before it commits. Closing it without applying it
+     * abandons it, for when the write failed.
+     */
+    public static final class Change implements AutoCloseable {
+        private final LazySnapshot<?> owner;
+        private final long sequence;
+        private boolean finished;
+
+        private Change(LazySnapshot<?> owner, long sequence) {
+            this.owner = owner;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                finished = true;
+                owner.abandon(sequence);
+            }
+        }
+    }
+
+    private static final class Recorded<T> {
+        // 0 for changes replayed whatever the snapshot holds
+        final long sequence;
+        final Update<T> update;
+        final Probe probe;
+
+        Recorded(long sequence, Update<T> update, Probe probe) {
+            this.sequence = sequence;
+            this.update = update;
+            this.probe = probe;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Installer<T, R> {
+        R install(T loaded);
+    }
+
+    private final DataSource dataSource;
+    private final Loader<T> loader;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition finished = lock.writeLock().newCondition();
+    // serializes loads, so at most one records changes
+    private final Object loadMonitor = new Object();
+
+    // guarded by lock, null until loaded
+    private T state;
+    // bumped when the state is dropped or replaced, a load across that is thrown away
+    private long generation;
+    private long announced;
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    // changes applied during the running load, null when none runs
+    private List<Recorded<T>> recording;
+
+    public LazySnapshot(DataSource dataSource, Loader<T> loader) {
+        this.dataSource = dataSource;
+        this.loader = loader;
+    }
+
+    /**
+     * Runs the reader on the state under the read lock, loading it first if
+     * needed. The reader must not keep the state.
+     */
+    public <R> R read(Reader<T, R> reader) throws SQLException {
+        while (true) {
+            lock.readLock().lock();
+            try {
+                if (state != null) {
+                    return reader.read(state);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            synchronized (loadMonitor) {
+                if (!isLoaded()) {
+                    loadFresh(loaded -> {
+                        state = loaded;
+                        return loaded;
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the state again and compares it with the one kept, loading that
+     * first if needed. Changes are held off while comparing, so the two agree
+     * unless something was missed.
+     */
+    public <R> R compare(Comparison<T, R> comparison) throws SQLException {
+        read(kept -> null);
+        synchronized (loadMonitor) {
+            while (true) {
+                R result = loadFresh(loaded -> state == null ? null : comparison.compare(state, loaded));
+                if (result != null) {
+                    return result;
+                }
+                read(kept -> null);
+            }
+        }
+    }
+
+    /**
+     * Whether a change committed now would be applied or replayed, so one that
+     * costs a query to describe can skip it otherwise.
+     */
+    public boolean isTracking() {
+        lock.readLock().lock();
+        try {
+            return state != null || recording != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a committed change that is harmless to apply twice.
+     */
+    public void update(Update<T> update) {
+        finish(0, update, null);
+    }
+
+    /**
+     * Announces a change that is about to commit. Nothing may be read through
+     * this snapshot until it is applied or closed.
+     */
+    public Change begin() {
+        lock.writeLock().lock();
+        try {
+            inFlight.add(++announced);
+            return new Change(this, announced);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies an announced change once committed. The probe tells a load whose
+     * snapshot was taken while it was in flight whether to replay it.
+     */
+    public void apply(Change change, Update<T> update, Probe probe) {
+        if (change.owner != this || change.finished) {
+            throw new IllegalStateException("Change is not in flight here");
+        }
+        change.finished = true;
+        finish(change.sequence, update, probe);
+    }
+
+    /**
+     * Drops the state and any load in progress. The next read loads it again.
+     */
+    public void invalidate() {
+        replace(null);
+    }
+
+    /**
+     * Puts a state built elsewhere in place, dropping any load in progress.
+     */
+    public void replace(T replacement) {
+        lock.writeLock().lock();
+        try {
+            generation++;
+            state = replacement;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isLoaded() {
+        lock.readLock().lock();
+        try {
+            return state != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void abandon(long sequence) {
+        finish(sequence, null, null);
+    }
+
+    private void finish(long sequence, Update<T> update, Probe probe) {
+        lock.writeLock().lock();
+        try {
+            if (sequence != 0) {
+                inFlight.remove(sequence);
+                finished.signalAll();
+            }
+            if (update == null) {
+                return;
+            }
+            if (state != null) {
+                update.apply(state);
+            }
+            if (recording != null) {
+                recording.add(new Recorded<>(sequence, update, probe));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the state and hands it to the installer with the changes made since
+     * replayed, under the write lock. Returns null without calling it when the
+     * state was dropped or replaced meanwhile. The caller holds loadMonitor.
+     */
+    private <R> R loadFresh(Installer<T, R> installer) throws SQLException {
+        List<Recorded<T>> recorded = new ArrayList<>();
+        long startGeneration;
+        lock.writeLock().lock();
+        try {
+            startGeneration = generation;
+            recording = recorded;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                // the first statement takes the snapshot every later one reads
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SELECT 1");
+                }
+                long pinned = awaitAnnounced();
+                T loaded = loader.load(conn);
+
+                // changes announced before the snapshot have all finished, ask it which it holds
+                List<Recorded<T>> uncertain = new ArrayList<>();
+                lock.writeLock().lock();
+                try {
+                    for (Recorded<T> change : recorded) {
+                        if (change.sequence != 0 && change.sequence <= pinned && change.probe != null) {
+                            uncertain.add(change);
+                        }
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                Set<Recorded<T>> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Recorded<T> change : uncertain) {
+                    if (change.probe.seen(conn)) {
+                        seen.add(change);
+                    }
+                }
+                conn.commit();
+
+                lock.writeLock().lock();
+                try {
+                    recording = null;
+                    if (generation != startGeneration) {
+                        return null;
+                    }
+                    for (Recorded<T> change : recorded) {
+                        if (!seen.contains(change)) {
+                            change.update.apply(loaded);
+                        }
+                    }
+                    return installer.install(loaded);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (recording == recorded) {
+                    recording = null;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until every change announced so far has finished, returning the last
+     * one. Those announced later commit after the snapshot just taken.
+     */
+    private long awaitAnnounced() throws SQLException {
+        lock.writeLock().lock();
+        try {
+            long pinned = announced;
+            while (!inFlight.isEmpty() && inFlight.first() <= pinned) {
+                finished.await();
+            }
+            return pinned;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for changes to commit", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package io.sustc.service.impl.Tools;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.sustc.dto.UserRecord.Identity;
+
+/**
+ * Bounded LRU cache of authenticated users, so that hot users authenticate without
+ * touching the database.
+ * <p>
+ * Entries are keyed by mid, and can also be found by qq or wechat through
+ * secondary maps that are kept in step on insert, eviction and invalidation.
+ * Every invalidation bumps a generation, and a loader only stores what it read
+ * if no invalidation happened meanwhile, so a concurrent delete is never undone
+ * by a slow load.
+ */
+public class PrincipalCache {
+    /**
+     * What authentication needs to know about a user.
+     */
+    public static final class Principal {
+        private final long mid;
+        private final String password;
+        private final String qq;
+        private final String wechat;
+        private final Identity identity;
+
+        public Principal(long mid, String password, String qq, String wechat, Identity identity) {
+            this.mid = mid;
+            this.password = password;
+            this.qq = qq;
+            this.wechat = wechat;
+            this.identity = identity;
+        }
+
+        public long getMid() {
+            return mid;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getQq() {
+            return qq;
+        }
+
+        public String getWechat() {
+            return wechat;
+        }
+
+        public Identity getIdentity() {
+            return identity;
+        }
+    }
+
+    private final int capacity;
+
+    // guarded by this
+    private final LinkedHashMap<Long, Principal> byMid;
+    private final Map<String, Long> byQq = new HashMap<>();
+    private final Map<String, Long> byWechat = new HashMap<>();
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PrincipalCache(int capacity) {
+        this.capacity = capacity;
+        this.byMid = new LinkedHashMap<Long, Principal>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Principal> eldest) {
+                if (size() <= PrincipalCache.this.capacity) {
+                    return false;
+                }
+                unindex(eldest.getValue());
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    public synchronized Principal getByMid(long mid) {
+        return count(byMid.get(mid));
+    }
+
+    public synchronized Principal getByQq(String qq) {
+        Long mid = byQq.get(qq);
+        return count(mid == null ? null : byMid.get(mid));
+    }
+
+    public synchronized Principal getByWechat(String wechat) {
+        Long mid = byWechat.get(wechat);
+        return count(mid == null ? null : byMid.get(mid));
+    }
+
+    private Principal count(Principal principal) {
+        if (principal == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return principal;
+    }
+
+    /**
+     * Read before loading a principal, and passed back to {@link #put(Principal, long)}.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores a loaded principal, unless the cache was invalidated since {@code loadedAt}.
+     */
+    public synchronized void put(Principal principal, long loadedAt) {
+        if (loadedAt != generation) {
+            return;
+        }
+        Principal previous = byMid.put(principal.mid, principal);
+        if (previous != null) {
+            unindex(previous);
+        }
+        if (principal.qq != null) {
+            byQq.put(principal.qq, principal.mid);
+        }
+        if (principal.wechat != null) {
+            byWechat.put(principal.wechat, principal.mid);
+        }
+    }
+
+    /**
+     * Drops the user with this mid and whatever is cached under the given qq and
+     * wechat, which may belong to someone else.
+     */
+    public synchronized void invalidate(long mid, String qq, String wechat) {
+        generation++;
+        remove(byMid.get(mid));
+        if (qq != null) {
+            Long other = byQq.get(qq);
+            remove(other == null ? null : byMid.get(other));
+        }
+        if (wechat != null) {
+            Long other = byWechat.get(wechat);
+            remove(other == null ? null : byMid.get(other));
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        byMid.clear();
+        byQq.clear();
+        byWechat.clear();
+    }
+
+    private void remove(Principal principal) {
+        if (principal != null) {
+            byMid.remove(principal.mid);
+            unindex(principal);
+        }
+    }
+
+    private void unindex(Principal principal) {
+        if (principal.qq != null) {
+            byQq.remove(principal.qq, principal.mid);
+        }
+        if (principal.wechat != null) {
+            byWechat.remove(principal.wechat, principal.mid);
+        }
+    }
+
+    public synchronized int size() {
+        return byMid.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,151 @@
+package io.sustc.service.impl.Tools;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.sustc.service.impl.Recommend.RankedSnapshot;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides when the recommendation aggregates are refreshed, and makes sure only
+ * one thread does it at a time.
+ * <p>
+ * Every change bumps a dirty epoch. A reader that finds the aggregates behind
+ * that epoch either refreshes them itself or, when another thread is already
+ * refreshing, serves the previous snapshot as long as it has been stale for less
+ * than {@code sustc.recommend.max-staleness-ms}, and waits for the refresh
+ * otherwise. A bound of 0 always waits.
+ */
+@Slf4j
+@Component
+public class RefreshCoordinator {
+    private final AggregateRefresher refresher;
+    private final RankedSnapshot rankedSnapshot;
+    private final long maxStalenessMillis;
+
+    private final AtomicLong dirtyEpoch = new AtomicLong(1);
+    private volatile long refreshedEpoch;
+    // when the aggregates first fell behind, 0 while they are fresh
+    private final AtomicLong staleSince = new AtomicLong(System.currentTimeMillis());
+    private volatile boolean hasSnapshot;
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshNanos = new AtomicLong();
+    private final AtomicLong staleReads = new AtomicLong();
+    private final AtomicLong waitedReads = new AtomicLong();
+
+    @Autowired
+    public RefreshCoordinator(AggregateRefresher refresher, RankedSnapshot rankedSnapshot,
+            @Value("${sustc.recommend.max-staleness-ms:0}") long maxStalenessMillis) {
+        this.refresher = refresher;
+        this.rankedSnapshot = rankedSnapshot;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * Records a committed change to the watches, interactions or duration of a video.
+     */
+    public void markDirty(String bv) {
+        refresher.markDirty(bv);
+        bump();
+    }
+
+    public void markDirty(Collection<String> bvs) {
+        refresher.markDirty(bvs);
+        bump();
+    }
+
+    /**
+     * Records a change to every video, e.g. a bulk import.
+     */
+    public void markAllDirty() {
+        refresher.markAllDirty();
+        bump();
+    }
+
+    private void bump() {
+        dirtyEpoch.incrementAndGet();
+        staleSince.compareAndSet(0, System.currentTimeMillis());
+    }
+
+    /**
+     * Brings the aggregates up to the latest change, or returns at once if they are
+     * fresh enough. Refresh failures are logged, the reader then sees the old rows.
+     */
+    public void ensureFresh() {
+        if (refreshedEpoch >= dirtyEpoch.get()) {
+            return;
+        }
+        if (!refreshLock.tryLock()) {
+            long since = staleSince.get();
+            if (hasSnapshot && (since == 0 || System.currentTimeMillis() - since < maxStalenessMillis)) {
+                staleReads.incrementAndGet();
+                return;
+            }
+            waitedReads.incrementAndGet();
+            refreshLock.lock();
+        }
+        try {
+            // the refresh we waited for may already cover our change
+            long target = dirtyEpoch.get();
+            if (refreshedEpoch >= target) {
+                return;
+            }
+            long start = System.nanoTime();
+            Collection<String> refreshed = refresher.refresh();
+            long elapsed = System.nanoTime() - start;
+            // the general ranking re-scores what changed on its next read
+            if (refreshed == null) {
+                rankedSnapshot.markAllChanged();
+            } else {
+                rankedSnapshot.markChanged(refreshed);
+            }
+            refreshedEpoch = target;
+            hasSnapshot = true;
+            staleSince.set(0);
+            if (dirtyEpoch.get() > target) {
+                staleSince.compareAndSet(0, System.currentTimeMillis());
+            }
+            refreshCount.incrementAndGet();
+            refreshNanos.addAndGet(elapsed);
+            log.info("Aggregate refresh #{} to epoch {} took {}ms, {} readers served stale, {} waited so far",
+                    refreshCount.get(), target, elapsed / 1_000_000, staleReads.get(), waitedReads.get());
+        } catch (SQLException e) {
+            log.error("Failed to refresh the recommendation aggregates", e);
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Total time spent refreshing, in milliseconds.
+     */
+    public long getRefreshMillis() {
+        return refreshNanos.get() / 1_000_000;
+    }
+
+    /**
+     * Readers that were served the previous snapshot while a refresh was running.
+     */
+    public long getStaleReads() {
+        return staleReads.get();
+    }
+
+    /**
+     * Readers that waited for another thread's refresh.
+     */
+    public long getWaitedReads() {
+        return waitedReads.get();
+    }
+}
@@ -0,0 +1,170 @@
+package io.sustc.service.impl.Tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects one page of a ranking without sorting everything that was ranked.
+ * <p>
+ * Items are ranked by a primitive {@code long} score, highest first, and ties
+ * keep the order the items were given in, as a stable sort would. A page within
+ * the first eighth of the items is taken from a bounded heap of the best
+ * {@code pageNum * pageSize} items; a deeper page is cut out with two
+ * quickselects and only the page itself is sorted.
+ */
+public class TopK {
+    /**
+     * Packs a pair of non-negative primary and secondary scores into one score
+     * ordering by the primary first.
+     */
+    public static long score(int primary, int secondary) {
+        return (long) primary << 32 | (secondary & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Items ranked {@code (pageNum - 1) * pageSize} up to {@code pageNum * pageSize}
+     * by score. The caller checks the page lies within the items.
+     */
+    public static <T> List<T> page(List<T> items, long[] scores, int pageSize, int pageNum) {
+        int n = items.size();
+        int start = (pageNum - 1) * pageSize;
+        int end = (int) Math.min((long) pageNum * pageSize, n);
+        int[] ranked = end <= n / 8 ? heapTop(scores, n, end) : selectRange(scores, n, start, end);
+        List<T> page = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            page.add(items.get(ranked[i]));
+        }
+        return page;
+    }
+
+    /**
+     * Positions 0 to k of the result hold the best k items in rank order.
+     */
+    private static int[] heapTop(long[] scores, int n, int k) {
+        // min-heap on rank, the root is the worst item kept
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < n && k > 0; i++) {
+            if (size < k) {
+                heap[size] = i;
+                siftUp(heap, size++, scores);
+            } else if (better(i, heap[0], scores)) {
+                heap[0] = i;
+                siftDown(heap, 0, size, scores);
+            }
+        }
+        // popping the worst item to the back leaves the best first
+        for (int last = size - 1; last > 0; last--) {
+            int worst = heap[0];
+            heap[0] = heap[last];
+            heap[last] = worst;
+            siftDown(heap, 0, last, scores);
+        }
+        return heap;
+    }
+
+    private static void siftUp(int[] heap, int i, long[] scores) {
+        int item = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(heap[parent], item, scores)) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = item;
+    }
+
+    private static void siftDown(int[] heap, int i, int size, long[] scores) {
+        int item = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && better(heap[child], heap[child + 1], scores)) {
+                child++;
+            }
+            if (!better(item, heap[child], scores)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = item;
+    }
+
+    /**
+     * Positions start to end of the result hold the items of those ranks in rank
+     * order, the rest are only partitioned around them.
+     */
+    private static int[] selectRange(long[] scores, int n, int start, int end) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        select(order, 0, n - 1, start, scores);
+        select(order, start, n - 1, end - 1, scores);
+        sort(order, start, end - 1, scores);
+        return order;
+    }
+
+    /**
+     * Moves the item of rank {@code k} to position k, better items before it.
+     */
+    private static void select(int[] order, int low, int high, int k, long[] scores) {
+        while (high > low) {
+            int pivot = partition(order, low, high, scores);
+            if (pivot == k) {
+                return;
+            } else if (pivot < k) {
+                low = pivot + 1;
+            } else {
+                high = pivot - 1;
+            }
+        }
+    }
+
+    private static int partition(int[] order, int low, int high, long[] scores) {
+        // median of three keeps already ranked input from going quadratic
+        int mid = (low + high) >>> 1;
+        if (better(order[mid], order[low], scores)) {
+            swap(order, mid, low);
+        }
+        if (better(order[high], order[low], scores)) {
+            swap(order, high, low);
+        }
+        if (better(order[high], order[mid], scores)) {
+            swap(order, high, mid);
+        }
+        swap(order, mid, high);
+        int pivot = order[high];
+        int store = low;
+        for (int i = low; i < high; i++) {
+            if (better(order[i], pivot, scores)) {
+                swap(order, i, store++);
+            }
+        }
+        swap(order, store, high);
+        return store;
+    }
+
+    private static void sort(int[] order, int low, int high, long[] scores) {
+        if (low < high) {
+            int pivot = partition(order, low, high, scores);
+            sort(order, low, pivot - 1, scores);
+            sort(order, pivot + 1, high, scores);
+        }
+    }
+
+    private static boolean better(int a, int b, long[] scores) {
+        return scores[a] > scores[b] || (scores[a] == scores[b] && a < b);
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int item = order[i];
+        order[i] = order[j];
+        order[j] = item;
+    }
+}
@@ -0,0 +1,250 @@
+package io.sustc.service.impl.Tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Number of watches and total watch time of each video, so ranking by views and
+ * averaging the view rate cost a lookup rather than a pass over
+ * {@code user_video_watch}.
+ * <p>
+ * The aggregates are loaded with one grouped query on first use by a
+ * {@link LazySnapshot} and then kept in an open-addressing map from {@code bv}
+ * to primitive counts and sums. Watches are only written by an import, which
+ * calls {@link #invalidate()}, and only removed by deleteVideo and
+ * deleteAccount. Forgetting a video is harmless to apply twice, but taking off
+ * a user's watches is not, so deleteAccount announces it before the delete.
+ * {@link #check()} recomputes the aggregates from the table and reports where
+ * they disagree.
+ */
+@Slf4j
+@Component
+public class WatchStats {
+    private static final String LOAD_SQL = "SELECT bv, COUNT(mid) AS view_count, SUM(watch_time) AS watch_time "
+            + "FROM user_video_watch GROUP BY bv";
+    private static final String WATCHED_SQL = "SELECT 1 FROM user_video_watch WHERE mid = ? LIMIT 1";
+    // sums are updated one watch at a time, so allow for rounding
+    private static final double TOLERANCE = 1e-6;
+
+    /**
+     * Watches of one video.
+     */
+    public static final class Aggregate {
+        private final int count;
+        private final double watchTime;
+
+        Aggregate(int count, double watchTime) {
+            this.count = count;
+            this.watchTime = watchTime;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getWatchTime() {
+            return watchTime;
+        }
+    }
+
+    private final LazySnapshot<Table> table;
+
+    @Autowired
+    public WatchStats(DataSource dataSource) {
+        this.table = new LazySnapshot<>(dataSource, WatchStats::load);
+    }
+
+    /**
+     * View counts of the given videos, 0 for those nobody watched.
+     */
+    public Map<String, Integer> viewCounts(Collection<String> bvs) throws SQLException {
+        Map<String, Integer> views = new HashMap<>();
+        if (bvs.isEmpty()) {
+            return views;
+        }
+        return table.read(loaded -> {
+            for (String bv : bvs) {
+                int slot = loaded.slot(bv);
+                views.put(bv, loaded.keys[slot] == null ? 0 : loaded.counts[slot]);
+            }
+            return views;
+        });
+    }
+
+    /**
+     * Watches of a video, or null when nobody watched it.
+     */
+    public Aggregate get(String bv) throws SQLException {
+        return table.read(loaded -> {
+            int slot = loaded.slot(bv);
+            if (loaded.keys[slot] == null || loaded.counts[slot] == 0) {
+                return null;
+            }
+            return new Aggregate(loaded.counts[slot], loaded.watchTimes[slot]);
+        });
+    }
+
+    /**
+     * Forgets a deleted video's watches.
+     */
+    public void removeVideo(String bv) {
+        table.update(loaded -> {
+            int slot = loaded.slot(bv);
+            if (loaded.keys[slot] != null) {
+                loaded.counts[slot] = 0;
+                loaded.watchTimes[slot] = 0;
+            }
+        });
+    }
+
+    /**
+     * Announces that a user's watches are about to be deleted, to be passed to
+     * {@link #removeWatches(LazySnapshot.Change, long, List, List)} once
+     * committed.
+     */
+    public LazySnapshot.Change begin() {
+        return table.begin();
+    }
+
+    /**
+     * Takes off the committed deletion of a user's watches, given as the video and
+     * watch time of each.
+     */
+    public void removeWatches(LazySnapshot.Change change, long mid, List<String> bvs, List<Double> watchTimes) {
+        table.apply(change, loaded -> {
+            for (int i = 0; i < bvs.size(); i++) {
+                int slot = loaded.slot(bvs.get(i));
+                if (loaded.keys[slot] != null && loaded.counts[slot] > 0) {
+                    loaded.counts[slot]--;
+                    // the last watch leaves exactly nothing, not a rounding residue
+                    loaded.watchTimes[slot] = loaded.counts[slot] == 0 ? 0
+                            : loaded.watchTimes[slot] - watchTimes.get(i);
+                }
+            }
+        }, snapshot -> {
+            // the snapshot holds the deletion if it holds none of the user's watches
+            try (PreparedStatement ps = snapshot.prepareStatement(WATCHED_SQL)) {
+                ps.setLong(1, mid);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return !rs.next();
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops every aggregate, for when the tables are reloaded.
+     */
+    public void invalidate() {
+        table.invalidate();
+    }
+
+    /**
+     * Recomputes the aggregates from {@code user_video_watch} and describes every
+     * video where they differ from the ones kept here. Loads them first if needed.
+     */
+    public List<String> check() throws SQLException {
+        return table.compare((kept, fresh) -> {
+            List<String> differences = new ArrayList<>();
+            for (int slot = 0; slot < fresh.keys.length; slot++) {
+                String bv = fresh.keys[slot];
+                if (bv == null) {
+                    continue;
+                }
+                int at = kept.slot(bv);
+                int count = kept.keys[at] == null ? 0 : kept.counts[at];
+                double watchTime = kept.keys[at] == null ? 0 : kept.watchTimes[at];
+                double allowed = TOLERANCE * Math.max(1, fresh.watchTimes[slot]);
+                if (count != fresh.counts[slot] || Math.abs(watchTime - fresh.watchTimes[slot]) > allowed) {
+                    differences.add(String.format("%s: kept %d watches / %.3f s, table has %d / %.3f s", bv, count,
+                            watchTime, fresh.counts[slot], fresh.watchTimes[slot]));
+                }
+            }
+            for (int slot = 0; slot < kept.keys.length; slot++) {
+                String bv = kept.keys[slot];
+                if (bv != null && kept.counts[slot] > 0 && fresh.keys[fresh.slot(bv)] == null) {
+                    differences.add(String.format("%s: kept %d watches / %.3f s, table has none", bv,
+                            kept.counts[slot], kept.watchTimes[slot]));
+                }
+            }
+            return differences;
+        });
+    }
+
+    private static Table load(Connection conn) throws SQLException {
+        long start = System.currentTimeMillis();
+        Table loaded = new Table(1024);
+        try (PreparedStatement ps = conn.prepareStatement(LOAD_SQL);
+                ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                loaded = loaded.put(rs.getString("bv"), rs.getInt("view_count"), rs.getDouble("watch_time"));
+            }
+        }
+        log.info("Loaded watch stats of {} videos in {} ms", loaded.size, System.currentTimeMillis() - start);
+        return loaded;
+    }
+
+    /**
+     * Linear-probing table from bv to its aggregates, at most half full.
+     */
+    private static final class Table {
+        final String[] keys;
+        final int[] counts;
+        final double[] watchTimes;
+        int size;
+
+        Table(int capacity) {
+            keys = new String[capacity];
+            counts = new int[capacity];
+            watchTimes = new double[capacity];
+        }
+
+        /**
+         * Slot holding the key, or the free slot where it belongs.
+         */
+        int slot(String bv) {
+            int mask = keys.length - 1;
+            int hash = bv.hashCode() * 0x9E3779B9;
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (keys[slot] != null && !keys[slot].equals(bv)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Adds a new key, returning the table to use from now on.
+         */
+        Table put(String bv, int count, double watchTime) {
+            Table target = this;
+            if ((size + 1) * 2 > keys.length) {
+                target = new Table(keys.length * 2);
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != null) {
+                        target.put(keys[i], counts[i], watchTimes[i]);
+                    }
+                }
+            }
+            int slot = target.slot(bv);
+            target.keys[slot] = bv;
+            target.counts[slot] = count;
+            target.watchTimes[slot] = watchTime;
+            target.size++;
+            return target;
+        }
+    }
+}
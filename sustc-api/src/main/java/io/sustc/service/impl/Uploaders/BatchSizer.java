@@ -0,0 +1,53 @@
+package io.sustc.service.impl.Uploaders;
+
+/**
+ * Sizes the batches of one import stage from how fast its previous batches went.
+ * <p>
+ * Each finished batch reports the rows it wrote and how long the write took.
+ * The observed rows per second are smoothed, and the next batch is sized to take
+ * about {@link #TARGET_NANOS}, so a table whose records expand into many rows gets
+ * small batches and a table of narrow rows gets fewer, larger round trips.
+ */
+class BatchSizer {
+    private static final long TARGET_NANOS = 200_000_000L;
+    private static final int INITIAL_ROWS = 1000;
+    private static final int MIN_ROWS = 100;
+    private static final int MAX_ROWS = 50_000;
+    // weight of the latest batch in the smoothed rate
+    private static final double ALPHA = 0.3;
+
+    // guarded by this
+    private double rowsPerNano;
+    private int targetRows = INITIAL_ROWS;
+    private long batches;
+    private long totalNanos;
+
+    /**
+     * Number of rows the next batch should hold.
+     */
+    synchronized int targetRows() {
+        return targetRows;
+    }
+
+    /**
+     * Records a finished batch and adjusts the target for the next one.
+     */
+    synchronized void record(long rows, long nanos) {
+        if (rows <= 0 || nanos <= 0) {
+            return;
+        }
+        batches++;
+        totalNanos += nanos;
+        double rate = (double) rows / nanos;
+        rowsPerNano = rowsPerNano == 0 ? rate : ALPHA * rate + (1 - ALPHA) * rowsPerNano;
+        long target = (long) (rowsPerNano * TARGET_NANOS);
+        targetRows = (int) Math.max(MIN_ROWS, Math.min(MAX_ROWS, target));
+    }
+
+    /**
+     * Average write latency of the recorded batches, in milliseconds.
+     */
+    synchronized long averageMillis() {
+        return batches == 0 ? 0 : totalNanos / batches / 1_000_000;
+    }
+}
@@ -0,0 +1,198 @@
+package io.sustc.service.impl.Uploaders;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Streams rows into one table with {@code COPY ... FROM STDIN (FORMAT binary)}.
+ * <p>
+ * Fields are encoded straight into a single reusable buffer, which is handed to
+ * the driver whenever it fills up. Column values must be written in the order
+ * given to the constructor and with the exact wire type of the column.
+ */
+public class BinaryCopyWriter implements AutoCloseable {
+    private static final byte[] HEADER = {
+            'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0,
+            0, 0, 0, 0, // flags
+            0, 0, 0, 0, // header extension length
+    };
+    private static final int BUFFER_SIZE = 1 << 16;
+    // 2000-01-01, the epoch of postgres date and timestamp values
+    private static final long PG_EPOCH_SECONDS = 946_684_800L;
+    private static final long PG_EPOCH_DAYS = 10_957L;
+
+    private final CopyIn copyIn;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    public BinaryCopyWriter(Connection conn, String table, String columns) throws SQLException {
+        String sql = "COPY " + table + " (" + columns + ") FROM STDIN (FORMAT binary)";
+        this.copyIn = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+        System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+        position = HEADER.length;
+    }
+
+    public void startRow(int fieldCount) throws SQLException {
+        ensure(2);
+        putShort(fieldCount);
+    }
+
+    public void writeNull() throws SQLException {
+        ensure(4);
+        putInt(-1);
+    }
+
+    public void writeLong(long value) throws SQLException {
+        ensure(12);
+        putInt(8);
+        putLong(value);
+    }
+
+    public void writeInt(int value) throws SQLException {
+        ensure(8);
+        putInt(4);
+        putInt(value);
+    }
+
+    public void writeDouble(double value) throws SQLException {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    public void writeBoolean(boolean value) throws SQLException {
+        ensure(5);
+        putInt(1);
+        buffer[position++] = (byte) (value ? 1 : 0);
+    }
+
+    public void writeTimestamp(Timestamp value) throws SQLException {
+        if (value == null) {
+            writeNull();
+            return;
+        }
+        // timestamp without time zone: the local wall-clock time, as setTimestamp sends it
+        LocalDateTime local = value.toLocalDateTime();
+        long seconds = local.toEpochSecond(ZoneOffset.UTC) - PG_EPOCH_SECONDS;
+        writeLong(seconds * 1_000_000L + local.getNano() / 1_000);
+    }
+
+    public void writeDate(LocalDate value) throws SQLException {
+        if (value == null) {
+            writeNull();
+            return;
+        }
+        writeInt((int) (value.toEpochDay() - PG_EPOCH_DAYS));
+    }
+
+    public void writeText(String value) throws SQLException {
+        if (value == null) {
+            writeNull();
+            return;
+        }
+        int maxBytes = value.length() * 3;
+        if (maxBytes + 4 > BUFFER_SIZE) {
+            writeLargeText(value);
+            return;
+        }
+        ensure(maxBytes + 4);
+        int lengthAt = position;
+        position += 4;
+        encodeUtf8(value);
+        int length = position - lengthAt - 4;
+        position = lengthAt;
+        putInt(length);
+        position += length;
+    }
+
+    /**
+     * Writes the trailer and completes the copy.
+     *
+     * @return the number of rows the server accepted
+     */
+    public long finish() throws SQLException {
+        ensure(2);
+        putShort(-1);
+        flush();
+        return copyIn.endCopy();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (copyIn.isActive()) {
+            copyIn.cancelCopy();
+        }
+    }
+
+    private void writeLargeText(String value) throws SQLException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4);
+        putInt(bytes.length);
+        flush();
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+    }
+
+    private void encodeUtf8(String value) {
+        byte[] buf = buffer;
+        int pos = position;
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, replaced the same way String.getBytes does
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        position = pos;
+    }
+
+    private void ensure(int bytes) throws SQLException {
+        if (position + bytes > buffer.length) {
+            flush();
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (position > 0) {
+            copyIn.writeToCopy(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void putShort(int value) {
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+}
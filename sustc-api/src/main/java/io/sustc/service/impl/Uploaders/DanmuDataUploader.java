@@ -2,106 +2,203 @@ package io.sustc.service.impl.Uploaders;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.sql.Statement;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.sql.SQLException;
-import java.util.List;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import io.sustc.dto.*;
+import io.sustc.service.impl.Tools.DanmuHistograms;
+import io.sustc.service.impl.Tools.DanmuIdAllocator;
 
 import javax.sql.DataSource;
 
 @Transactional
 public class DanmuDataUploader {
     private DataSource dataSource;
-    private static final int THREAD_POOL_SIZE = 10;
-    private static final int batchsize = 1000;
+    // ids reserved at a time when reading a stream
+    private static final int ID_BLOCK = 1000;
+    private final ImportMode mode;
+    private final DanmuIdAllocator idAllocator;
+    // counts the written danmus per 10-second bucket, null to skip
+    private final DanmuHistograms histograms;
 
     @Autowired
     public DanmuDataUploader(DataSource dataSource) {
-        this.dataSource = dataSource;
+        this(dataSource, ImportMode.BATCH, new DanmuIdAllocator(dataSource), null);
     }
 
-    public void uploadData(List<DanmuRecord> danmuRecords) throws SQLException {
-        ExecutorService executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    public DanmuDataUploader(DataSource dataSource, ImportMode mode, DanmuIdAllocator idAllocator,
+            DanmuHistograms histograms) {
+        this.dataSource = dataSource;
+        this.mode = mode;
+        this.idAllocator = idAllocator;
+        this.histograms = histograms;
+    }
 
-        // 分割userRecords为多个批次
-        List<List<DanmuRecord>> batches = splitIntoBatches(danmuRecords, batchsize);
+    /**
+     * A danmu record together with the id reserved for it.
+     */
+    private static final class DanmuRow {
+        private final long id;
+        private final DanmuRecord record;
 
-        for (List<DanmuRecord> batch : batches) {
-            executor.submit(() -> {
-                try {
-                    insertBatch(batch);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            });
+        private DanmuRow(long id, DanmuRecord record) {
+            this.id = id;
+            this.record = record;
         }
+    }
 
-        executor.shutdown();
-        try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Registers the {@code danmus} stage after {@code videos} and the {@code danmu_like}
+     * stage after {@code users}. One id block is reserved for the whole list, so ids
+     * follow the record order and both tables can load at the same time.
+     */
+    public void registerStages(ImportScheduler scheduler, List<DanmuRecord> danmuRecords) throws SQLException {
+        long first = danmuRecords.isEmpty() ? 0 : idAllocator.reserve(danmuRecords.size());
+        List<DanmuRow> rows = new AbstractList<DanmuRow>() {
+            @Override
+            public DanmuRow get(int index) {
+                return new DanmuRow(first + index, danmuRecords.get(index));
+            }
+
+            @Override
+            public int size() {
+                return danmuRecords.size();
+            }
+        };
+        scheduler.addStage("danmus", rows, row -> 1, this::writeAndCountDanmus, "videos");
+        scheduler.addStage("danmu_like", rows, row -> row.record.getLikedBy().length, this::writeLikes, "users");
     }
 
-    private void insertBatch(List<DanmuRecord> batch) throws SQLException {
+    /**
+     * Registers the {@code danmus} stage after {@code videos} for a record stream.
+     * Ids are reserved a block at a time as the stream is read, and each batch writes
+     * its danmus and likes together.
+     */
+    public void registerStages(ImportScheduler scheduler, Iterator<DanmuRecord> danmuRecords) {
+        Iterator<DanmuRow> rows = new Iterator<DanmuRow>() {
+            private long next = 1;
+            private long end = 0;
+
+            @Override
+            public boolean hasNext() {
+                return danmuRecords.hasNext();
+            }
+
+            @Override
+            public DanmuRow next() {
+                if (next > end) {
+                    try {
+                        next = idAllocator.reserve(ID_BLOCK);
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                    end = next + ID_BLOCK - 1;
+                }
+                return new DanmuRow(next++, danmuRecords.next());
+            }
+        };
+        scheduler.addStage("danmus", rows, row -> 1 + row.record.getLikedBy().length,
+                batch -> writeAndCountDanmus(batch) + writeLikes(batch), "videos");
+    }
 
-        String danmuSql = "INSERT INTO danmus (bv, mid, time, content, postTime) VALUES (?, ?, ?, ?, ?)";
-        String danmuLikeSql = "INSERT INTO danmu_like (danmuId, mid) VALUES (?, ?)";
+    private long writeAndCountDanmus(List<DanmuRow> batch) throws SQLException {
+        long rows = writeDanmus(batch);
+        if (histograms != null) {
+            List<DanmuRecord> records = new ArrayList<>(batch.size());
+            for (DanmuRow row : batch) {
+                records.add(row.record);
+            }
+            histograms.addImported(records);
+        }
+        return rows;
+    }
 
-        try (Connection conn = dataSource.getConnection();) {
-            String disableSql = "SET session_replication_role = 'replica'";
-            try (PreparedStatement disableStmt = conn.prepareStatement(disableSql)) {
-                disableStmt.execute();
+    private long writeDanmus(List<DanmuRow> batch) throws SQLException {
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter danmus = new BinaryCopyWriter(conn, "danmus",
+                        "id, bv, mid, time, content, postTime")) {
+                    for (DanmuRow row : batch) {
+                        DanmuRecord danmu = row.record;
+                        danmus.startRow(6);
+                        danmus.writeInt((int) row.id);
+                        danmus.writeText(danmu.getBv());
+                        danmus.writeLong(danmu.getMid());
+                        danmus.writeDouble(danmu.getTime());
+                        danmus.writeText(danmu.getContent());
+                        danmus.writeTimestamp(danmu.getPostTime());
+                    }
+                    return danmus.finish();
+                }
             }
 
-            try (PreparedStatement danmuStmt = conn.prepareStatement(danmuSql, Statement.RETURN_GENERATED_KEYS);
-                    PreparedStatement danmuLikeStmt = conn.prepareStatement(danmuLikeSql);) {
-                for (DanmuRecord danmu : batch) {
-                    danmuStmt.setString(1, danmu.getBv());
-                    danmuStmt.setLong(2, danmu.getMid());
-                    danmuStmt.setFloat(3, danmu.getTime());
-                    danmuStmt.setString(4, danmu.getContent());
-                    danmuStmt.setTimestamp(5, danmu.getPostTime());
+            String danmuSql = "INSERT INTO danmus (id, bv, mid, time, content, postTime) VALUES (?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement danmuStmt = conn.prepareStatement(danmuSql)) {
+                for (DanmuRow row : batch) {
+                    DanmuRecord danmu = row.record;
+                    danmuStmt.setInt(1, (int) row.id);
+                    danmuStmt.setString(2, danmu.getBv());
+                    danmuStmt.setLong(3, danmu.getMid());
+                    danmuStmt.setFloat(4, danmu.getTime());
+                    danmuStmt.setString(5, danmu.getContent());
+                    danmuStmt.setTimestamp(6, danmu.getPostTime());
                     danmuStmt.addBatch();
                 }
-
                 danmuStmt.executeBatch();
-                ResultSet id = danmuStmt.getGeneratedKeys();
-                int i = 0;
-                while (id.next()) {
-                    danmuLikeStmt.setInt(1, id.getInt(1));
-                    for (long mid : batch.get(i++).getLikedBy()) {
+                return batch.size();
+            }
+        }
+    }
+
+    private long writeLikes(List<DanmuRow> batch) throws SQLException {
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter likes = new BinaryCopyWriter(conn, "danmu_like", "danmuId, mid")) {
+                    for (DanmuRow row : batch) {
+                        for (long mid : row.record.getLikedBy()) {
+                            likes.startRow(2);
+                            likes.writeInt((int) row.id);
+                            likes.writeLong(mid);
+                        }
+                    }
+                    return likes.finish();
+                }
+            }
+
+            String danmuLikeSql = "INSERT INTO danmu_like (danmuId, mid) VALUES (?, ?)";
+            long rows = 0;
+            try (PreparedStatement danmuLikeStmt = conn.prepareStatement(danmuLikeSql)) {
+                for (DanmuRow row : batch) {
+                    danmuLikeStmt.setInt(1, (int) row.id);
+                    for (long mid : row.record.getLikedBy()) {
                         danmuLikeStmt.setLong(2, mid);
                         danmuLikeStmt.addBatch();
+                        rows++;
                     }
                 }
                 danmuLikeStmt.executeBatch();
+                return rows;
             }
         }
     }
 
-    private <T> List<List<T>> splitIntoBatches(List<T> list, int batchSize) {
-        List<List<T>> batches = new ArrayList<>();
-        int size = list.size();
-        for (int i = 0; i < size; i += batchSize) {
-            if (i + batchSize < size) {
-                batches.add(list.subList(i, i + batchSize));
-            } else {
-                batches.add(list.subList(i, size));
-            }
+    private Connection openConnection() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        String disableSql = "SET session_replication_role = 'replica'";
+        try (PreparedStatement disableStmt = conn.prepareStatement(disableSql)) {
+            disableStmt.execute();
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
         }
-        return batches;
+        return conn;
     }
 
 }
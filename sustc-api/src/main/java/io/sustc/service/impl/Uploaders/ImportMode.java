@@ -0,0 +1,16 @@
+package io.sustc.service.impl.Uploaders;
+
+/**
+ * How the uploaders push rows into the database, chosen by {@code sustc.import.mode}.
+ */
+public enum ImportMode {
+    /**
+     * {@code INSERT} statements sent through JDBC {@code addBatch/executeBatch}.
+     */
+    BATCH,
+
+    /**
+     * {@code COPY ... FROM STDIN} in binary format through the pgjdbc {@code CopyManager}.
+     */
+    COPY,
+}
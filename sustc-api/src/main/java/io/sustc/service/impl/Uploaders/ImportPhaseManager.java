@@ -0,0 +1,211 @@
+package io.sustc.service.impl.Uploaders;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Defers index and constraint maintenance during a bulk load.
+ * <p>
+ * {@link #dropAll()} captures the primary keys, unique constraints, standalone
+ * indexes and foreign keys of the target tables (plus foreign keys pointing at
+ * them) and drops them. {@link #rebuild()} recreates the keys and indexes in
+ * parallel once the data is in, adds the foreign keys as {@code NOT VALID} and
+ * validates them last.
+ */
+@Slf4j
+public class ImportPhaseManager {
+    private final DataSource dataSource;
+    private final String[] tables;
+
+    private final List<Definition> keys = new ArrayList<>();
+    private final List<Definition> indexes = new ArrayList<>();
+    private final List<Definition> foreignKeys = new ArrayList<>();
+
+    public ImportPhaseManager(DataSource dataSource, String... tables) {
+        this.dataSource = dataSource;
+        this.tables = tables;
+    }
+
+    private static final class Definition {
+        private final String table;
+        private final String name;
+        private final String sql;
+
+        private Definition(String table, String name, String sql) {
+            this.table = table;
+            this.name = name;
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * Captures the definitions and drops them in one transaction.
+     */
+    public void dropAll() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            capture(conn);
+            try (Statement stmt = conn.createStatement()) {
+                for (Definition fk : foreignKeys) {
+                    stmt.execute("ALTER TABLE " + fk.table + " DROP CONSTRAINT " + fk.name);
+                }
+                for (Definition key : keys) {
+                    stmt.execute("ALTER TABLE " + key.table + " DROP CONSTRAINT " + key.name);
+                }
+                for (Definition index : indexes) {
+                    stmt.execute("DROP INDEX " + index.name);
+                }
+            }
+            conn.commit();
+        }
+        log.info("Dropped {} keys, {} indexes and {} foreign keys before loading",
+                keys.size(), indexes.size(), foreignKeys.size());
+    }
+
+    /**
+     * Rebuilds everything {@link #dropAll()} removed. Every definition is tried
+     * even when others fail, so one bad table does not leave the others without
+     * indexes, and the failures are thrown together at the end.
+     */
+    public void rebuild() throws SQLException {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Throwable> failures = new ArrayList<>();
+        try {
+            // keys of one table are added in one statement, different tables in parallel
+            Map<String, List<String>> keysByTable = new LinkedHashMap<>();
+            for (Definition key : keys) {
+                keysByTable.computeIfAbsent(key.table, t -> new ArrayList<>())
+                        .add("ADD CONSTRAINT " + key.name + " " + key.sql);
+            }
+            List<String> statements = new ArrayList<>();
+            keysByTable.forEach((table, clauses) ->
+                    statements.add("ALTER TABLE " + table + " " + String.join(", ", clauses)));
+            for (Definition index : indexes) {
+                statements.add(index.sql);
+            }
+            runAll(pool, statements, failures);
+
+            // NOT VALID skips the scan, validation then runs without blocking writes to the tables
+            List<String> addForeignKeys = new ArrayList<>();
+            List<String> validations = new ArrayList<>();
+            for (Definition fk : foreignKeys) {
+                String sql = fk.sql.endsWith(" NOT VALID") ? fk.sql : fk.sql + " NOT VALID";
+                addForeignKeys.add("ALTER TABLE " + fk.table + " ADD CONSTRAINT " + fk.name + " " + sql);
+                if (!fk.sql.endsWith(" NOT VALID")) {
+                    validations.add("ALTER TABLE " + fk.table + " VALIDATE CONSTRAINT " + fk.name);
+                }
+            }
+            runAll(pool, addForeignKeys, failures);
+            runAll(pool, validations, failures);
+        } finally {
+            pool.shutdown();
+        }
+        if (!failures.isEmpty()) {
+            SQLException e = new SQLException(failures.size() + " keys, indexes or foreign keys could not be rebuilt");
+            failures.forEach(e::addSuppressed);
+            throw e;
+        }
+        log.info("Rebuilt {} keys, {} indexes and {} foreign keys in {}ms",
+                keys.size(), indexes.size(), foreignKeys.size(), System.currentTimeMillis() - start);
+    }
+
+    private void capture(Connection conn) throws SQLException {
+        keys.clear();
+        indexes.clear();
+        foreignKeys.clear();
+        Array targets = conn.createArrayOf("text", tables);
+
+        String constraintSql = "SELECT c.conrelid::regclass::text AS table_name, quote_ident(c.conname) AS name, "
+                + "c.contype, pg_get_constraintdef(c.oid) AS def "
+                + "FROM pg_constraint c "
+                + "WHERE (c.contype IN ('p', 'u') AND c.conrelid IN (SELECT unnest(?::text[])::regclass)) "
+                + "OR (c.contype = 'f' AND (c.conrelid IN (SELECT unnest(?::text[])::regclass) "
+                + "OR c.confrelid IN (SELECT unnest(?::text[])::regclass)))";
+        try (PreparedStatement ps = conn.prepareStatement(constraintSql)) {
+            ps.setArray(1, targets);
+            ps.setArray(2, targets);
+            ps.setArray(3, targets);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Definition definition = new Definition(rs.getString("table_name"), rs.getString("name"),
+                            rs.getString("def"));
+                    if ("f".equals(rs.getString("contype"))) {
+                        foreignKeys.add(definition);
+                    } else {
+                        keys.add(definition);
+                    }
+                }
+            }
+        }
+
+        // indexes that do not back a key, those come back with their constraint
+        String indexSql = "SELECT i.indrelid::regclass::text AS table_name, i.indexrelid::regclass::text AS name, "
+                + "pg_get_indexdef(i.indexrelid) AS def "
+                + "FROM pg_index i "
+                + "WHERE i.indrelid IN (SELECT unnest(?::text[])::regclass) "
+                + "AND NOT EXISTS (SELECT 1 FROM pg_constraint c "
+                + "WHERE c.conindid = i.indexrelid AND c.contype IN ('p', 'u', 'x'))";
+        try (PreparedStatement ps = conn.prepareStatement(indexSql)) {
+            ps.setArray(1, targets);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    indexes.add(new Definition(rs.getString("table_name"), rs.getString("name"),
+                            rs.getString("def")));
+                }
+            }
+        }
+        for (Definition definition : keys) {
+            log.debug("Captured key on {}: {} {}", definition.table, definition.name, definition.sql);
+        }
+        for (Definition definition : indexes) {
+            log.debug("Captured index: {}", definition.sql);
+        }
+        for (Definition definition : foreignKeys) {
+            log.debug("Captured foreign key on {}: {} {}", definition.table, definition.name, definition.sql);
+        }
+    }
+
+    private void runAll(ExecutorService pool, List<String> statements, List<Throwable> failures)
+            throws SQLException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (String sql : statements) {
+            futures.add(pool.submit(() -> {
+                try (Connection conn = dataSource.getConnection();
+                        Statement stmt = conn.createStatement()) {
+                    stmt.execute(sql);
+                } catch (SQLException e) {
+                    log.error("Failed to rebuild: {}", sql, e);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while rebuilding keys and indexes", e);
+            } catch (ExecutionException e) {
+                failures.add(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package io.sustc.service.impl.Uploaders;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.ToIntFunction;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the import as a DAG of stages on one shared, bounded worker pool.
+ * <p>
+ * A stage loads one table from a list of records, split into batches. It
+ * becomes ready once every stage it depends on has finished, so stages whose
+ * parent keys already exist load at the same time. Batches are handed out
+ * round-robin over the ready stages, and at most {@code threads} of them are
+ * in flight at once, which should match the size of the connection pool.
+ * <p>
+ * Batches are cut by rows rather than records, each stage telling how many rows
+ * a record expands into, and the row target of every stage follows its observed
+ * throughput through a {@link BatchSizer}.
+ * <p>
+ * A stage may also read from an {@link Iterator}, which is only pulled when a
+ * worker is free, so memory stays bounded by the in-flight batches rather than
+ * by the size of the data set.
+ */
+@Slf4j
+public class ImportScheduler {
+    private static final int DEFAULT_THREADS = 10;
+
+    private final int threads;
+    private final Map<String, Stage<?>> stages = new LinkedHashMap<>();
+    private final List<Stage<?>> order = new ArrayList<>();
+    private final Object lock = new Object();
+    private int cursor;
+
+    public ImportScheduler() {
+        this(DEFAULT_THREADS);
+    }
+
+    public ImportScheduler(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Writes one batch of records into a table.
+     *
+     * @return the number of rows written
+     */
+    @FunctionalInterface
+    public interface BatchWriter<T> {
+        long write(List<T> batch) throws SQLException;
+    }
+
+    /**
+     * Adds a stage over a list of records.
+     *
+     * @param rowsPerRecord how many rows one record writes into the stage's tables
+     */
+    public <T> void addStage(String name, List<T> records, ToIntFunction<T> rowsPerRecord, BatchWriter<T> writer,
+            String... dependsOn) {
+        addStage(name, records.iterator(), rowsPerRecord, writer, dependsOn);
+    }
+
+    /**
+     * Adds a stage that reads its records lazily from a single-pass iterator.
+     *
+     * @param rowsPerRecord how many rows one record writes into the stage's tables
+     */
+    public <T> void addStage(String name, Iterator<T> records, ToIntFunction<T> rowsPerRecord, BatchWriter<T> writer,
+            String... dependsOn) {
+        register(new Stage<>(name, records, rowsPerRecord, writer, dependsOn));
+    }
+
+    private void register(Stage<?> stage) {
+        for (String dependency : stage.dependsOn) {
+            if (!stages.containsKey(dependency)) {
+                throw new IllegalArgumentException("Stage " + stage.name + " depends on unknown stage " + dependency);
+            }
+        }
+        stages.put(stage.name, stage);
+        order.add(stage);
+    }
+
+    /**
+     * Runs every stage and blocks until all of them have finished, then logs the
+     * per-stage timings and the critical path.
+     */
+    public void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore permits = new Semaphore(threads);
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Stage<?> stage;
+                synchronized (lock) {
+                    while ((stage = nextReady()) == null) {
+                        if (allDone()) {
+                            report(System.nanoTime() - start);
+                            return;
+                        }
+                        lock.wait();
+                    }
+                }
+                permits.acquire();
+                stage.dispatch(pool, permits);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Import interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Stage<?> nextReady() {
+        for (int i = 0; i < order.size(); i++) {
+            Stage<?> stage = order.get((cursor + i) % order.size());
+            if (!stage.exhausted && dependenciesDone(stage)) {
+                cursor = (cursor + i + 1) % order.size();
+                if (stage.startNanos == 0) {
+                    stage.startNanos = System.nanoTime();
+                }
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    private boolean dependenciesDone(Stage<?> stage) {
+        for (String dependency : stage.dependsOn) {
+            if (!stages.get(dependency).done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean allDone() {
+        for (Stage<?> stage : stages.values()) {
+            if (!stage.done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void report(long totalNanos) {
+        for (Stage<?> stage : stages.values()) {
+            long millis = (stage.endNanos - stage.startNanos) / 1_000_000;
+            log.info("Stage {}: {} rows in {}ms ({} rows/s), {} batches averaging {}ms, last target {} rows{}",
+                    stage.name, stage.rows, millis, stage.rows * 1000 / Math.max(millis, 1), stage.batchCount,
+                    stage.sizer.averageMillis(), stage.sizer.targetRows(),
+                    stage.failedBatches > 0 ? ", " + stage.failedBatches + " batches failed" : "");
+        }
+
+        // walk back from the stage that finished last through its latest-finishing dependency
+        Stage<?> last = null;
+        for (Stage<?> stage : stages.values()) {
+            if (last == null || stage.endNanos > last.endNanos) {
+                last = stage;
+            }
+        }
+        List<String> path = new ArrayList<>();
+        while (last != null) {
+            path.add(0, last.name);
+            Stage<?> previous = null;
+            for (String dependency : last.dependsOn) {
+                Stage<?> candidate = stages.get(dependency);
+                if (previous == null || candidate.endNanos > previous.endNanos) {
+                    previous = candidate;
+                }
+            }
+            last = previous;
+        }
+        log.info("Import critical path: {}, total {}ms", String.join(" -> ", path), totalNanos / 1_000_000);
+    }
+
+    private final class Stage<T> {
+        private final String name;
+        private final List<String> dependsOn;
+        private final Iterator<T> records;
+        private final ToIntFunction<T> rowsPerRecord;
+        private final BatchWriter<T> writer;
+        private final BatchSizer sizer = new BatchSizer();
+
+        // guarded by lock
+        private boolean exhausted;
+        private boolean done;
+        private int inFlight;
+        private int batchCount;
+        private long rows;
+        private int failedBatches;
+        private long startNanos;
+        private long endNanos;
+
+        private Stage(String name, Iterator<T> records, ToIntFunction<T> rowsPerRecord, BatchWriter<T> writer,
+                String[] dependsOn) {
+            this.name = name;
+            this.records = records;
+            this.rowsPerRecord = rowsPerRecord;
+            this.writer = writer;
+            this.dependsOn = Arrays.asList(dependsOn);
+        }
+
+        /**
+         * Hands the next batch to the pool, or closes the stage when none is left.
+         * Only called from the dispatching thread, which holds one permit.
+         */
+        private void dispatch(ExecutorService pool, Semaphore permits) {
+            if (!records.hasNext()) {
+                permits.release();
+                synchronized (lock) {
+                    exhausted = true;
+                    finishIfIdle();
+                }
+                return;
+            }
+            List<T> batch = nextBatch();
+            synchronized (lock) {
+                inFlight++;
+                batchCount++;
+            }
+            pool.execute(() -> {
+                long written = 0;
+                boolean failed = false;
+                try {
+                    long begin = System.nanoTime();
+                    written = writer.write(batch);
+                    sizer.record(written, System.nanoTime() - begin);
+                } catch (Exception e) {
+                    failed = true;
+                    log.error("Failed to import a batch of {}", name, e);
+                } finally {
+                    permits.release();
+                    synchronized (lock) {
+                        inFlight--;
+                        rows += written;
+                        if (failed) {
+                            failedBatches++;
+                        }
+                        finishIfIdle();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Takes records until they add up to the current row target, and at least one.
+         */
+        private List<T> nextBatch() {
+            int target = sizer.targetRows();
+            List<T> batch = new ArrayList<>();
+            long weight = 0;
+            while (weight < target && records.hasNext()) {
+                T record = records.next();
+                batch.add(record);
+                weight += Math.max(1, rowsPerRecord.applyAsInt(record));
+            }
+            return batch;
+        }
+
+        private void finishIfIdle() {
+            if (exhausted && inFlight == 0 && !done) {
+                done = true;
+                endNanos = System.nanoTime();
+            }
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.sustc.service.impl.Uploaders;
+
+import java.sql.SQLException;
+
+import io.sustc.dto.VideoRecord;
+
+/**
+ * Merges the like, coin and favorite lists of a video into one row of flags per user.
+ * <p>
+ * Uses an open-addressing map from {@code mid} to flag bits on primitive arrays,
+ * reused from one video to the next, so merging allocates nothing per row.
+ * Not thread-safe, each batch uses its own instance.
+ */
+public class InteractionMerger {
+    public static final int LIKED = 1;
+    public static final int COINED = 2;
+    public static final int FAVORITED = 4;
+
+    /**
+     * Receives one merged {@code user_video_interaction} row.
+     */
+    @FunctionalInterface
+    public interface RowConsumer {
+        void accept(long mid, int flags) throws SQLException;
+    }
+
+    private long[] keys = new long[64];
+    // 0 marks a free slot, every stored mid has at least one flag set
+    private byte[] flags = new byte[64];
+    // slots in insertion order, so emitting and clearing only touch used slots
+    private int[] order = new int[32];
+    private int size;
+
+    /**
+     * Emits one row per distinct user who liked, coined or collected the video.
+     *
+     * @return the number of rows emitted
+     */
+    public int merge(VideoRecord video, RowConsumer out) throws SQLException {
+        long[] like = video.getLike();
+        long[] coin = video.getCoin();
+        long[] favorite = video.getFavorite();
+        ensureCapacity(like.length + coin.length + favorite.length);
+        add(like, LIKED);
+        add(coin, COINED);
+        add(favorite, FAVORITED);
+
+        int rows = size;
+        try {
+            for (int i = 0; i < rows; i++) {
+                int slot = order[i];
+                out.accept(keys[slot], flags[slot]);
+            }
+        } finally {
+            for (int i = 0; i < rows; i++) {
+                flags[order[i]] = 0;
+            }
+            size = 0;
+        }
+        return rows;
+    }
+
+    private void add(long[] mids, int flag) {
+        int mask = keys.length - 1;
+        for (long mid : mids) {
+            int slot = hash(mid) & mask;
+            while (flags[slot] != 0 && keys[slot] != mid) {
+                slot = (slot + 1) & mask;
+            }
+            if (flags[slot] == 0) {
+                keys[slot] = mid;
+                order[size++] = slot;
+            }
+            flags[slot] |= flag;
+        }
+    }
+
+    private void ensureCapacity(int entries) {
+        // keep the load factor at or below one half
+        if (entries * 2 <= keys.length) {
+            return;
+        }
+        int capacity = Integer.highestOneBit(entries * 2 - 1) << 1;
+        keys = new long[capacity];
+        flags = new byte[capacity];
+        // sized to the table, not this video, since later ones skip the resize while they fit
+        order = new int[capacity / 2];
+    }
+
+    private static int hash(long mid) {
+        long h = mid * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
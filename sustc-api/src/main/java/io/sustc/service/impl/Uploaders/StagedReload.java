@@ -0,0 +1,251 @@
+package io.sustc.service.impl.Uploaders;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reloads every table of the {@code public} schema without taking the service down.
+ * <p>
+ * {@link #prepare()} creates an UNLOGGED copy of each table in a staging schema,
+ * with the columns, defaults, keys and indexes of the live table (the schema
+ * built by {@code constructor.sql}) and the same foreign keys. The import then
+ * runs against {@link #getStagingDataSource()}, whose connections resolve table
+ * names to the staging schema, while readers keep using the live tables.
+ * {@link #setLogged()} makes the loaded tables crash-safe and {@link #swap()}
+ * moves the old tables out and the new ones in within one transaction.
+ */
+@Slf4j
+public class StagedReload {
+    public static final String STAGING_SCHEMA = "sustc_staging";
+    private static final String RETIRED_SCHEMA = "sustc_retired";
+
+    private final DataSource dataSource;
+    private final DataSource stagingDataSource;
+
+    private final List<String> tables = new ArrayList<>();
+    // staging table -> tables it references, filled by prepare
+    private final Map<String, Set<String>> parents = new HashMap<>();
+
+    public StagedReload(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.stagingDataSource = new DelegatingDataSource(dataSource) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                Connection conn = super.getConnection();
+                try {
+                    // the pool puts the schema back when the connection is returned
+                    conn.setSchema(STAGING_SCHEMA);
+                } catch (SQLException e) {
+                    conn.close();
+                    throw e;
+                }
+                return conn;
+            }
+        };
+    }
+
+    /**
+     * Connections of this data source read and write the staging tables.
+     */
+    public DataSource getStagingDataSource() {
+        return stagingDataSource;
+    }
+
+    /**
+     * Recreates the staging schema with an empty UNLOGGED copy of every live table.
+     */
+    public void prepare() throws SQLException {
+        tables.clear();
+        parents.clear();
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT quote_ident(tablename) FROM pg_tables WHERE schemaname = 'public' ORDER BY tablename")) {
+                    while (rs.next()) {
+                        tables.add(rs.getString(1));
+                    }
+                }
+
+                stmt.execute("DROP SCHEMA IF EXISTS " + STAGING_SCHEMA + " CASCADE");
+                stmt.execute("CREATE SCHEMA " + STAGING_SCHEMA);
+                for (String table : tables) {
+                    stmt.execute("CREATE UNLOGGED TABLE " + STAGING_SCHEMA + "." + table
+                            + " (LIKE public." + table + " INCLUDING ALL)");
+                    parents.put(table, new HashSet<>());
+                }
+
+                // LIKE does not copy foreign keys, the tables are empty so adding them is cheap
+                String foreignKeySql = "SELECT c.conrelid::regclass::text AS table_name, "
+                        + "c.confrelid::regclass::text AS parent, quote_ident(c.conname) AS name, "
+                        + "pg_get_constraintdef(c.oid) AS def "
+                        + "FROM pg_constraint c JOIN pg_class t ON t.oid = c.conrelid "
+                        + "WHERE c.contype = 'f' AND t.relnamespace = 'public'::regnamespace";
+                List<String> addForeignKeys = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery(foreignKeySql)) {
+                    while (rs.next()) {
+                        String table = rs.getString("table_name");
+                        String parent = rs.getString("parent");
+                        addForeignKeys.add("ALTER TABLE " + STAGING_SCHEMA + "." + table + " ADD CONSTRAINT "
+                                + rs.getString("name") + " " + qualifyReference(rs.getString("def"), parent));
+                        if (!parent.equals(table)) {
+                            parents.get(table).add(parent);
+                        }
+                    }
+                }
+                for (String sql : addForeignKeys) {
+                    stmt.execute(sql);
+                }
+            }
+            conn.commit();
+        }
+        log.info("Prepared {} staging tables in {}", tables.size(), STAGING_SCHEMA);
+    }
+
+    /**
+     * Switches the staging tables to LOGGED. A logged table may not reference an
+     * unlogged one, so parents go first and each level runs in parallel.
+     */
+    public void setLogged() throws SQLException {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Set<String> logged = new HashSet<>();
+            while (logged.size() < tables.size()) {
+                List<String> level = new ArrayList<>();
+                for (String table : tables) {
+                    if (!logged.contains(table) && logged.containsAll(parents.get(table))) {
+                        level.add(table);
+                    }
+                }
+                if (level.isEmpty()) {
+                    throw new SQLException("Foreign keys between the staging tables form a cycle");
+                }
+                List<Future<?>> futures = new ArrayList<>();
+                for (String table : level) {
+                    futures.add(pool.submit(() -> {
+                        try (Connection conn = dataSource.getConnection();
+                                Statement stmt = conn.createStatement()) {
+                            stmt.execute("ALTER TABLE " + STAGING_SCHEMA + "." + table + " SET LOGGED");
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while setting the staging tables logged", e);
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof SQLException
+                                ? (SQLException) e.getCause()
+                                : new SQLException(e.getCause());
+                    }
+                }
+                logged.addAll(level);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Set {} staging tables logged in {}ms", tables.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Moves the live tables out and the staging tables in, in one transaction, then
+     * drops the old tables. Readers wait only for the renames, not for the load.
+     */
+    public void swap() throws SQLException {
+        long start = System.currentTimeMillis();
+        try (Connection conn = dataSource.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP SCHEMA IF EXISTS " + RETIRED_SCHEMA + " CASCADE");
+            }
+
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                List<String> live = new ArrayList<>();
+                for (String table : tables) {
+                    live.add("public." + table);
+                }
+                stmt.execute("LOCK TABLE " + String.join(", ", live) + " IN ACCESS EXCLUSIVE MODE");
+                stmt.execute("CREATE SCHEMA " + RETIRED_SCHEMA);
+
+                // serial sequences follow their table when it moves, keep them in public
+                List<String[]> ownedSequences = ownedSequences(conn);
+                for (String[] owned : ownedSequences) {
+                    stmt.execute("ALTER SEQUENCE " + owned[0] + " OWNED BY NONE");
+                }
+                for (String table : tables) {
+                    stmt.execute("ALTER TABLE public." + table + " SET SCHEMA " + RETIRED_SCHEMA);
+                }
+                for (String table : tables) {
+                    stmt.execute("ALTER TABLE " + STAGING_SCHEMA + "." + table + " SET SCHEMA public");
+                }
+                for (String[] owned : ownedSequences) {
+                    stmt.execute("ALTER SEQUENCE " + owned[0] + " OWNED BY public." + owned[1] + "." + owned[2]);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+
+            conn.setAutoCommit(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP SCHEMA " + RETIRED_SCHEMA + " CASCADE");
+                stmt.execute("DROP SCHEMA " + STAGING_SCHEMA);
+            }
+        }
+        log.info("Swapped in {} reloaded tables in {}ms", tables.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Sequences owned by a column of a live table, as {sequence, table, column}.
+     */
+    private List<String[]> ownedSequences(Connection conn) throws SQLException {
+        String sql = "SELECT s.oid::regclass::text AS seq, quote_ident(t.relname) AS table_name, "
+                + "quote_ident(a.attname) AS col "
+                + "FROM pg_depend d "
+                + "JOIN pg_class s ON s.oid = d.objid AND s.relkind = 'S' "
+                + "JOIN pg_class t ON t.oid = d.refobjid AND t.relnamespace = 'public'::regnamespace "
+                + "JOIN pg_attribute a ON a.attrelid = d.refobjid AND a.attnum = d.refobjsubid "
+                + "WHERE d.classid = 'pg_class'::regclass AND d.refclassid = 'pg_class'::regclass "
+                + "AND d.deptype = 'a'";
+        List<String[]> owned = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql);
+                ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                owned.add(new String[] { rs.getString("seq"), rs.getString("table_name"), rs.getString("col") });
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Points a foreign key definition at the staging copy of its parent table.
+     */
+    private static String qualifyReference(String definition, String parent) {
+        return definition.replace(" REFERENCES " + parent + "(",
+                " REFERENCES " + STAGING_SCHEMA + "." + parent + "(");
+    }
+}
@@ -2,17 +2,15 @@ package io.sustc.service.impl.Uploaders;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.sql.Date;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ArrayList;
 
 import io.sustc.dto.*;
 import io.sustc.service.impl.Tools.ParseDate;
@@ -22,98 +20,159 @@ import javax.sql.DataSource;
 @Transactional
 public class UserDataUploader {
     private DataSource dataSource;
-    private static final int THREAD_POOL_SIZE = 10;
-    private static final int batchsize = 1000;
+    private final ImportMode mode;
 
     @Autowired
     public UserDataUploader(DataSource dataSource) {
+        this(dataSource, ImportMode.BATCH);
+    }
+
+    public UserDataUploader(DataSource dataSource, ImportMode mode) {
         this.dataSource = dataSource;
+        this.mode = mode;
     }
 
-    public void uploadData(List<UserRecord> userRecords) throws SQLException {
-        ExecutorService executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    /**
+     * Registers the {@code users}, {@code auth_info} and {@code user_relationships}
+     * stages. The latter two only need the users to exist.
+     */
+    public void registerStages(ImportScheduler scheduler, List<UserRecord> userRecords) {
+        scheduler.addStage("users", userRecords, user -> 1, this::writeUsers);
+        scheduler.addStage("auth_info", userRecords, user -> 1, this::writeAuthInfo, "users");
+        scheduler.addStage("user_relationships", userRecords, user -> user.getFollowing().length,
+                this::writeRelationships, "users");
+    }
 
-        // 分割userRecords为多个批次
-        List<List<UserRecord>> batches = splitIntoBatches(userRecords, batchsize);
+    /**
+     * Registers a single {@code users} stage for a record stream. A stream can only
+     * be read once, so each batch writes its users, auth info and relationships together.
+     */
+    public void registerStages(ImportScheduler scheduler, Iterator<UserRecord> userRecords) {
+        scheduler.addStage("users", userRecords, user -> 2 + user.getFollowing().length,
+                batch -> writeUsers(batch) + writeAuthInfo(batch) + writeRelationships(batch));
+    }
 
-        for (List<UserRecord> batch : batches) {
-            executor.submit(() -> {
-                try {
-                    insertBatch(batch);
-                } catch (Exception e) {
-                    e.printStackTrace();
+    private long writeUsers(List<UserRecord> batch) throws SQLException {
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter users = new BinaryCopyWriter(conn, "users",
+                        "mid, name, sex, birthday, level, sign, identity, coin")) {
+                    for (UserRecord user : batch) {
+                        users.startRow(8);
+                        users.writeLong(user.getMid());
+                        users.writeText(user.getName());
+                        users.writeText(user.getSex());
+                        users.writeDate(parseBirthday(user.getBirthday()));
+                        users.writeInt(user.getLevel());
+                        users.writeText(user.getSign());
+                        users.writeText(user.getIdentity().toString());
+                        users.writeInt(user.getCoin());
+                    }
+                    return users.finish();
                 }
-            });
-        }
+            }
 
-        executor.shutdown();
-        try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            String userSql = "INSERT INTO users (mid, name, sex, birthday, level, sign, identity, coin) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement userStmt = conn.prepareStatement(userSql)) {
+                for (UserRecord user : batch) {
+                    userStmt.setLong(1, user.getMid());
+                    userStmt.setString(2, user.getName());
+                    userStmt.setString(3, user.getSex());
+                    userStmt.setInt(5, user.getLevel());
+                    userStmt.setString(6, user.getSign());
+                    userStmt.setString(7, user.getIdentity().toString());
+                    userStmt.setLong(8, user.getCoin());
+                    // Handle nullable fields
+                    LocalDate birthday = parseBirthday(user.getBirthday());
+                    userStmt.setDate(4, birthday == null ? null : Date.valueOf(birthday));
+                    userStmt.addBatch();
+                }
+                userStmt.executeBatch();
+                return batch.size();
+            }
         }
-
     }
 
-    private void insertBatch(List<UserRecord> batch) throws SQLException {
+    private long writeAuthInfo(List<UserRecord> batch) throws SQLException {
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter auth = new BinaryCopyWriter(conn, "auth_info", "mid, password, qq, wechat")) {
+                    for (UserRecord user : batch) {
+                        auth.startRow(4);
+                        auth.writeLong(user.getMid());
+                        auth.writeText(user.getPassword());
+                        auth.writeText(user.getQq());
+                        auth.writeText(user.getWechat());
+                    }
+                    return auth.finish();
+                }
+            }
 
-            String userSql = "INSERT INTO users (mid, name, sex, birthday, level, sign, identity, coin) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
             String authSql = "INSERT INTO auth_info (mid, password, qq, wechat) VALUES (?, ?, ?, ?)";
-            String followerSql = "INSERT INTO user_relationships (followerMid, followingMid) VALUES (?, ?)";
-            try (Connection conn = dataSource.getConnection();) {
-                String disableSql = "SET session_replication_role = 'replica'";
-                try (PreparedStatement disableStmt = conn.prepareStatement(disableSql)) {
-                    disableStmt.execute();
+            try (PreparedStatement authStmt = conn.prepareStatement(authSql)) {
+                for (UserRecord user : batch) {
+                    authStmt.setLong(1, user.getMid());
+                    authStmt.setString(2, user.getPassword());
+                    authStmt.setString(3, user.getQq());
+                    authStmt.setString(4, user.getWechat());
+                    authStmt.addBatch();
                 }
-                try (PreparedStatement userStmt = conn.prepareStatement(userSql);
-                        PreparedStatement authStmt = conn.prepareStatement(authSql);
-                        PreparedStatement followerStmt = conn.prepareStatement(followerSql)) {
+                authStmt.executeBatch();
+                return batch.size();
+            }
+        }
+    }
 
+    private long writeRelationships(List<UserRecord> batch) throws SQLException {
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter followers = new BinaryCopyWriter(conn, "user_relationships",
+                        "followerMid, followingMid")) {
                     for (UserRecord user : batch) {
-                        // User statement
-                        userStmt.setLong(1, user.getMid());
-                        userStmt.setString(2, user.getName());
-                        userStmt.setString(3, user.getSex());
-                        userStmt.setInt(5, user.getLevel());
-                        userStmt.setString(6, user.getSign());
-                        userStmt.setString(7, user.getIdentity().toString());
-                        userStmt.setLong(8, user.getCoin());
-                        // Handle nullable fields
-                        String birthday = user.getBirthday();
-                        userStmt.setDate(4, (birthday.equals("null") || birthday.equals("")) ? null
-                                : Date.valueOf(ParseDate.parseDate(birthday)));
-                        userStmt.addBatch();
-
-                        // Auth statement
-                        authStmt.setLong(1, user.getMid());
-                        authStmt.setString(2, user.getPassword());
-                        authStmt.setString(3, user.getQq());
-                        authStmt.setString(4, user.getWechat());
-                        authStmt.addBatch();
-
-                        // Follower statement
-                        followerStmt.setLong(1, user.getMid());
                         for (long mid : user.getFollowing()) {
-                            followerStmt.setLong(2, mid);
-                            followerStmt.addBatch();
+                            followers.startRow(2);
+                            followers.writeLong(user.getMid());
+                            followers.writeLong(mid);
                         }
                     }
+                    return followers.finish();
+                }
+            }
 
-                    userStmt.executeBatch();
-                    authStmt.executeBatch();
-                    followerStmt.executeBatch();
+            String followerSql = "INSERT INTO user_relationships (followerMid, followingMid) VALUES (?, ?)";
+            long rows = 0;
+            try (PreparedStatement followerStmt = conn.prepareStatement(followerSql)) {
+                for (UserRecord user : batch) {
+                    followerStmt.setLong(1, user.getMid());
+                    for (long mid : user.getFollowing()) {
+                        followerStmt.setLong(2, mid);
+                        followerStmt.addBatch();
+                        rows++;
+                    }
                 }
+                followerStmt.executeBatch();
+                return rows;
             }
+        }
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        String disableSql = "SET session_replication_role = 'replica'";
+        try (PreparedStatement disableStmt = conn.prepareStatement(disableSql)) {
+            disableStmt.execute();
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
     }
 
-    private List<List<UserRecord>> splitIntoBatches(List<UserRecord> userRecords, int batchSize) {
-        List<List<UserRecord>> batches = new ArrayList<>();
-        int totalSize = userRecords.size();
-        for (int i = 0; i < totalSize; i += batchSize) {
-            batches.add(new ArrayList<>(
-                    userRecords.subList(i, Math.min(i + batchSize, totalSize))));
+    private static LocalDate parseBirthday(String birthday) {
+        if (birthday == null || birthday.equals("null") || birthday.equals("")) {
+            return null;
         }
-        return batches;
+        return ParseDate.parseDate(birthday);
     }
 
 }
@@ -1,10 +1,7 @@
 package io.sustc.service.impl.Uploaders;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ArrayList;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
@@ -21,65 +18,78 @@ import javax.sql.DataSource;
 @Slf4j
 @Transactional
 public class VideoDataUploader {
-    private static final int THREAD_POOL_SIZE = 10; // 根据需要调整线程池大小
     private final DataSource dataSource;
-    private static final int BATCH_SIZE = 50;
+    private final ImportMode mode;
 
     @Autowired
     public VideoDataUploader(DataSource dataSource) {
-        this.dataSource = dataSource;
+        this(dataSource, ImportMode.BATCH);
     }
 
-    public void uploadVideoData(List<VideoRecord> videoRecords) throws SQLException {
-        ExecutorService executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    public VideoDataUploader(DataSource dataSource, ImportMode mode) {
+        this.dataSource = dataSource;
+        this.mode = mode;
+    }
 
-        // 将videoRecords分割为多个批次
-        List<List<VideoRecord>> batches = splitIntoBatches(videoRecords, BATCH_SIZE);
+    /**
+     * Registers the {@code videos} stage after {@code users}, and the
+     * {@code user_video_watch} and {@code user_video_interaction} stages after it.
+     */
+    public void registerStages(ImportScheduler scheduler, List<VideoRecord> videoRecords) {
+        scheduler.addStage("videos", videoRecords, video -> 1, this::writeVideos, "users");
+        scheduler.addStage("user_video_watch", videoRecords, video -> video.getViewerMids().length,
+                this::writeWatches, "videos");
+        scheduler.addStage("user_video_interaction", videoRecords, VideoDataUploader::interactionRows,
+                this::writeInteractions, "videos");
+    }
 
-        for (List<VideoRecord> batch : batches) {
-            executor.submit(() -> {
-                try {
-                    processBatch(batch);
-                } catch (Exception e) {
-                    log.error("Failed to process batch", e);
-                }
-            });
-        }
+    /**
+     * Registers a single {@code videos} stage after {@code users} for a record stream,
+     * each batch writing its videos, watches and interactions together.
+     */
+    public void registerStages(ImportScheduler scheduler, Iterator<VideoRecord> videoRecords) {
+        scheduler.addStage("videos", videoRecords,
+                video -> 1 + video.getViewerMids().length + interactionRows(video),
+                batch -> writeVideos(batch) + writeWatches(batch) + writeInteractions(batch), "users");
+    }
 
-        executor.shutdown();
-        try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Upper bound of the interaction rows of a video, users who did several things count once per list.
+     */
+    private static int interactionRows(VideoRecord video) {
+        return video.getLike().length + video.getCoin().length + video.getFavorite().length;
     }
 
-    private void processBatch(List<VideoRecord> batch) throws SQLException {
-        String videoSql = "INSERT INTO videos (bv, title, ownerMid, commitTime, reviewTime, publicTime, duration, description, isPublic, reviewer) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        String interactionSql = "INSERT INTO user_video_interaction (mid, bv, is_liked, is_coined, is_favorited) VALUES (?, ?, ?, ?, ?)";
-        String watchSql = "INSERT INTO user_video_watch (mid, bv, watch_time) VALUES (?, ?, ?)";
-        String likeSql = "INSERT INTO user_video_like (mid, bv) VALUES (?, ?)";
-        String coinSql = "INSERT INTO user_video_coin (mid, bv) VALUES (?, ?)";
-        String favoriteSql = "INSERT INTO user_video_favorite (mid, bv) VALUES (?, ?)";
-
-        try (Connection conn = dataSource.getConnection();) {
-            conn.setAutoCommit(false);
-            String disableSql = "SET session_replication_role = 'replica'";
-            try (PreparedStatement disableStmt = conn.prepareStatement(disableSql)) {
-                disableStmt.execute();
-            } catch (SQLException e) {
-                e.printStackTrace();
+    private long writeVideos(List<VideoRecord> batch) throws SQLException {
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter videos = new BinaryCopyWriter(conn, "videos",
+                        "bv, title, ownerMid, commitTime, reviewTime, publicTime, duration, description, isPublic, reviewer")) {
+                    for (VideoRecord video : batch) {
+                        videos.startRow(10);
+                        videos.writeText(video.getBv());
+                        videos.writeText(video.getTitle());
+                        videos.writeLong(video.getOwnerMid());
+                        videos.writeTimestamp(video.getCommitTime());
+                        videos.writeTimestamp(video.getReviewTime());
+                        videos.writeTimestamp(video.getPublicTime());
+                        // duration is an INT column, rounded the way postgres casts the float INSERT parameter
+                        videos.writeInt((int) Math.rint(video.getDuration()));
+                        videos.writeText(video.getDescription());
+                        videos.writeBoolean(true);
+                        if (video.getReviewer() == null) {
+                            videos.writeNull();
+                        } else {
+                            videos.writeLong(video.getReviewer());
+                        }
+                    }
+                    return videos.finish();
+                }
             }
 
-            try (PreparedStatement videoStmt = conn.prepareStatement(videoSql);
-                    PreparedStatement interactionStmt = conn.prepareStatement(interactionSql);
-                    PreparedStatement watchStmt = conn.prepareStatement(watchSql);
-                    PreparedStatement likeStmt = conn.prepareStatement(likeSql);
-                    PreparedStatement coinStmt = conn.prepareStatement(coinSql);
-                    PreparedStatement favoriteStmt = conn.prepareStatement(favoriteSql)) {
-
+            String videoSql = "INSERT INTO videos (bv, title, ownerMid, commitTime, reviewTime, publicTime, duration, description, isPublic, reviewer) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement videoStmt = conn.prepareStatement(videoSql)) {
                 for (VideoRecord video : batch) {
-                    // 插入video
                     videoStmt.setString(1, video.getBv());
                     videoStmt.setString(2, video.getTitle());
                     videoStmt.setLong(3, video.getOwnerMid());
@@ -91,7 +101,35 @@ public class VideoDataUploader {
                     videoStmt.setBoolean(9, true);
                     videoStmt.setLong(10, video.getReviewer());
                     videoStmt.addBatch();
+                }
+                videoStmt.executeBatch();
+                return batch.size();
+            }
+        }
+    }
+
+    private long writeWatches(List<VideoRecord> batch) throws SQLException {
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter watches = new BinaryCopyWriter(conn, "user_video_watch", "mid, bv, watch_time")) {
+                    for (VideoRecord video : batch) {
+                        long[] viewers = video.getViewerMids();
+                        float[] viewTime = video.getViewTime();
+                        for (int i = 0; i < viewers.length; i++) {
+                            watches.startRow(3);
+                            watches.writeLong(viewers[i]);
+                            watches.writeText(video.getBv());
+                            watches.writeDouble(viewTime[i]);
+                        }
+                    }
+                    return watches.finish();
+                }
+            }
 
+            String watchSql = "INSERT INTO user_video_watch (mid, bv, watch_time) VALUES (?, ?, ?)";
+            long rows = 0;
+            try (PreparedStatement watchStmt = conn.prepareStatement(watchSql)) {
+                for (VideoRecord video : batch) {
                     int temp = 0;
                     for (long mid : video.getViewerMids()) {
                         watchStmt.setLong(1, mid);
@@ -100,109 +138,62 @@ public class VideoDataUploader {
                         watchStmt.addBatch();
                     }
                     watchStmt.executeBatch();
+                    rows += temp;
                 }
-                videoStmt.executeBatch();
-                insertVideoInteractions(batch, conn);
-                conn.commit();
-            } catch (SQLException e) {
-                e.printStackTrace();
+                return rows;
             }
         }
     }
 
-    private List<List<VideoRecord>> splitIntoBatches(List<VideoRecord> videoRecords, int batchSize) {
-        List<List<VideoRecord>> batches = new ArrayList<>();
-        for (int i = 0; i < videoRecords.size(); i += batchSize) {
-            batches.add(videoRecords.subList(i, Math.min(i + batchSize, videoRecords.size())));
-        }
-        return batches;
-    }
-
-    private static void insertVideoInteractions(List<VideoRecord> videoList, Connection conn) throws SQLException {
-        conn.setAutoCommit(false);
-
-        createTempTables(conn);
-        batchInsertToTempTables(conn, videoList, "temp_likes");
-        batchInsertToTempTables(conn, videoList, "temp_coins");
-        batchInsertToTempTables(conn, videoList, "temp_favorites");
-        mergeDataWithMainTable(conn);
-        dropTempTables(conn);
-
-        conn.commit();
-    }
-
-    private static void createTempTables(Connection conn) throws SQLException {
-        try (PreparedStatement pstmt = conn.prepareStatement(
-                "CREATE TEMP TABLE IF NOT EXISTS temp_likes (mid BIGINT, bv VARCHAR(50));" +
-                        "CREATE TEMP TABLE IF NOT EXISTS temp_coins (mid BIGINT, bv VARCHAR(50));" +
-                        "CREATE TEMP TABLE IF NOT EXISTS temp_favorites (mid BIGINT, bv VARCHAR(50));")) {
-            pstmt.execute();
-        }
-    }
-
-    private static void batchInsertToTempTables(Connection conn, List<VideoRecord> videoList, String tableName)
-            throws SQLException {
-        String sql = "INSERT INTO " + tableName + " (mid, bv) VALUES (?, ?)";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            for (VideoRecord video : videoList) {
-                long[] userIds = new long[0];
-                if ("temp_likes".equals(tableName)) {
-                    userIds = video.getLike();
-                } else if ("temp_coins".equals(tableName)) {
-                    userIds = video.getCoin();
-                } else if ("temp_favorites".equals(tableName)) {
-                    userIds = video.getFavorite();
+    private long writeInteractions(List<VideoRecord> batch) throws SQLException {
+        InteractionMerger merger = new InteractionMerger();
+        try (Connection conn = openConnection()) {
+            if (mode == ImportMode.COPY) {
+                try (BinaryCopyWriter interactions = new BinaryCopyWriter(conn, "user_video_interaction",
+                        "mid, bv, is_liked, is_coined, is_favorited")) {
+                    for (VideoRecord video : batch) {
+                        merger.merge(video, (mid, flags) -> {
+                            interactions.startRow(5);
+                            interactions.writeLong(mid);
+                            interactions.writeText(video.getBv());
+                            interactions.writeBoolean((flags & InteractionMerger.LIKED) != 0);
+                            interactions.writeBoolean((flags & InteractionMerger.COINED) != 0);
+                            interactions.writeBoolean((flags & InteractionMerger.FAVORITED) != 0);
+                        });
+                    }
+                    return interactions.finish();
                 }
+            }
 
-                for (long userId : userIds) {
-                    pstmt.setLong(1, userId);
-                    pstmt.setString(2, video.getBv());
-                    pstmt.addBatch();
+            // each (mid, bv) is merged exactly once, so a plain insert is enough
+            String interactionSql = "INSERT INTO user_video_interaction (mid, bv, is_liked, is_coined, is_favorited) VALUES (?, ?, ?, ?, ?)";
+            long rows = 0;
+            try (PreparedStatement interactionStmt = conn.prepareStatement(interactionSql)) {
+                for (VideoRecord video : batch) {
+                    interactionStmt.setString(2, video.getBv());
+                    rows += merger.merge(video, (mid, flags) -> {
+                        interactionStmt.setLong(1, mid);
+                        interactionStmt.setBoolean(3, (flags & InteractionMerger.LIKED) != 0);
+                        interactionStmt.setBoolean(4, (flags & InteractionMerger.COINED) != 0);
+                        interactionStmt.setBoolean(5, (flags & InteractionMerger.FAVORITED) != 0);
+                        interactionStmt.addBatch();
+                    });
                 }
+                interactionStmt.executeBatch();
+                return rows;
             }
-            pstmt.executeBatch();
-        }
-    }
-
-    private static void mergeDataWithMainTable(Connection conn) throws SQLException {
-        String updateSql = "WITH combined AS (" +
-                "SELECT DISTINCT mid, bv FROM temp_likes " +
-                "UNION SELECT DISTINCT mid, bv FROM temp_coins " +
-                "UNION SELECT DISTINCT mid, bv FROM temp_favorites" +
-                "), " +
-                "likes AS (" +
-                "SELECT mid, bv, TRUE as is_liked FROM temp_likes" +
-                "), " +
-                "coins AS (" +
-                "SELECT mid, bv, TRUE as is_coined FROM temp_coins" +
-                "), " +
-                "favorites AS (" +
-                "SELECT mid, bv, TRUE as is_favorited FROM temp_favorites" +
-                ") " +
-                "INSERT INTO user_video_interaction (mid, bv, is_liked, is_coined, is_favorited) " +
-                "SELECT c.mid, c.bv, " +
-                "COALESCE(l.is_liked, FALSE), " +
-                "COALESCE(cn.is_coined, FALSE), " +
-                "COALESCE(f.is_favorited, FALSE) " +
-                "FROM combined c " +
-                "LEFT JOIN likes l ON c.mid = l.mid AND c.bv = l.bv " +
-                "LEFT JOIN coins cn ON c.mid = cn.mid AND c.bv = cn.bv " +
-                "LEFT JOIN favorites f ON c.mid = f.mid AND c.bv = f.bv " +
-                "ON CONFLICT (mid, bv) DO UPDATE SET " +
-                "is_liked = EXCLUDED.is_liked, " +
-                "is_coined = EXCLUDED.is_coined, " +
-                "is_favorited = EXCLUDED.is_favorited;";
-        try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
-            pstmt.execute();
         }
     }
 
-    private static void dropTempTables(Connection conn) throws SQLException {
-        try (PreparedStatement pstmt = conn.prepareStatement(
-                "DROP TABLE IF EXISTS temp_likes;" +
-                        "DROP TABLE IF EXISTS temp_coins;" +
-                        "DROP TABLE IF EXISTS temp_favorites;")) {
-            pstmt.execute();
+    private Connection openConnection() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        String disableSql = "SET session_replication_role = 'replica'";
+        try (PreparedStatement disableStmt = conn.prepareStatement(disableSql)) {
+            disableStmt.execute();
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
         }
+        return conn;
     }
 }
@@ -3,6 +3,7 @@ package io.sustc.service.impl;
 import java.time.LocalDate;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,7 +16,16 @@ import io.sustc.dto.UserInfoResp;
 import io.sustc.dto.RegisterUserReq.Gender;
 import io.sustc.dto.UserRecord.Identity;
 import io.sustc.service.UserService;
+import io.sustc.service.impl.Recommend.CoWatchIndex;
+import io.sustc.service.impl.Recommend.NeighborTable;
+import io.sustc.service.impl.Recommend.RankedSnapshot;
+import io.sustc.service.impl.Search.SearchCache;
+import io.sustc.service.impl.Search.SearchIndex;
+import io.sustc.service.impl.Tools.DanmuHistograms;
+import io.sustc.service.impl.Tools.RefreshCoordinator;
+import io.sustc.service.impl.Tools.WatchStats;
 import io.sustc.service.impl.Tools.Authenticate;
+import io.sustc.service.impl.Tools.LazySnapshot;
 import io.sustc.service.impl.Tools.ParseDate;
 import lombok.extern.slf4j.Slf4j;
 
@@ -34,6 +44,30 @@ public class UserServiceImpl implements UserService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private RefreshCoordinator refreshCoordinator;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private WatchStats watchStats;
+
+    @Autowired
+    private DanmuHistograms danmuHistograms;
+
+    @Autowired
+    private CoWatchIndex coWatchIndex;
+
+    @Autowired
+    private NeighborTable neighborTable;
+
+    @Autowired
+    private SearchCache searchCache;
+
+    @Autowired
+    private RankedSnapshot rankedSnapshot;
+
     @Override
     public long register(RegisterUserReq req) {
         // check if req is valid
@@ -72,6 +106,7 @@ public class UserServiceImpl implements UserService {
                 return -1;
             }
             long newUserId = createNewUser(req, conn);
+            Authenticate.principals().invalidate(newUserId, req.getQq(), req.getWechat());
             log.info("Successfully create new user: " + newUserId);
             return newUserId; 
         } catch (SQLException e) {
@@ -134,14 +169,28 @@ public class UserServiceImpl implements UserService {
                 String usersql = "DELETE FROM users WHERE mid = ?";
                 String authsql = "DELETE FROM auth_info WHERE mid = ?";
                 String relationsql = "DELETE FROM user_relationships WHERE followermid = ? OR followingmid = ?";
-                String videosql = "DELETE FROM videos WHERE ownermid = ?";
-                String watchsql = "DELETE FROM user_video_watch WHERE mid = ?";
+                String videosql = "DELETE FROM videos WHERE ownermid = ? RETURNING bv";
+                String watchsql = "DELETE FROM user_video_watch WHERE mid = ? RETURNING bv, watch_time";
+                String viewersql = "DELETE FROM user_video_watch WHERE bv IN (SELECT bv FROM videos WHERE ownermid = ?)";
+                // the likes of the danmus deleted next, and their own likes of anyone's
+                String danmulikesql = "DELETE FROM danmu_like WHERE mid = ? OR danmuid IN (SELECT id FROM danmus "
+                        + "WHERE mid = ? OR bv IN (SELECT bv FROM videos WHERE ownermid = ?))";
+                String danmusql = "DELETE FROM danmus WHERE mid = ? RETURNING bv, time";
+                String videodanmusql = "DELETE FROM danmus WHERE bv IN (SELECT bv FROM videos WHERE ownermid = ?)";
+                // their likes, coins and favorites, and everyone's on the videos deleted with them
+                String interactionsql = "DELETE FROM user_video_interaction "
+                        + "WHERE mid = ? OR bv IN (SELECT bv FROM videos WHERE ownermid = ?) RETURNING bv";
 
                 PreparedStatement userps = conn.prepareStatement(usersql);
                 PreparedStatement authps = conn.prepareStatement(authsql);
                 PreparedStatement relationps = conn.prepareStatement(relationsql);
                 PreparedStatement videops = conn.prepareStatement(videosql);
                 PreparedStatement watchps = conn.prepareStatement(watchsql);
+                PreparedStatement viewerps = conn.prepareStatement(viewersql);
+                PreparedStatement danmulikeps = conn.prepareStatement(danmulikesql);
+                PreparedStatement danmups = conn.prepareStatement(danmusql);
+                PreparedStatement videodanmups = conn.prepareStatement(videodanmusql);
+                PreparedStatement interactionps = conn.prepareStatement(interactionsql);
 
                 userps.setLong(1, mid);
                 authps.setLong(1, mid);
@@ -149,12 +198,82 @@ public class UserServiceImpl implements UserService {
                 relationps.setLong(2, mid);
                 videops.setLong(1, mid);
                 watchps.setLong(1, mid);
+                viewerps.setLong(1, mid);
+                danmulikeps.setLong(1, mid);
+                danmulikeps.setLong(2, mid);
+                danmulikeps.setLong(3, mid);
+                danmups.setLong(1, mid);
+                videodanmups.setLong(1, mid);
+                interactionps.setLong(1, mid);
+                interactionps.setLong(2, mid);
                 
-                relationps.executeUpdate();
-                authps.executeUpdate();
-                videops.executeUpdate();
-                watchps.executeUpdate();
-                userps.executeUpdate();
+                // one transaction, so a failed delete leaves the caches below nothing to undo
+                conn.setAutoCommit(false);
+                // the videos they owned, watched or interacted with need their aggregates recomputed
+                List<String> touched = new ArrayList<>();
+                List<String> owned = new ArrayList<>();
+                List<String> watched = new ArrayList<>();
+                List<Double> watchTimes = new ArrayList<>();
+                List<String> commented = new ArrayList<>();
+                List<Float> danmuTimes = new ArrayList<>();
+                // announced before the delete commits, so a watch stats or histogram load cannot take it off twice
+                try (LazySnapshot.Change change = watchStats.begin();
+                        LazySnapshot.Change danmuChange = danmuHistograms.begin()) {
+                    relationps.executeUpdate();
+                    authps.executeUpdate();
+                    // their watches go first, they may include the videos deleted next
+                    try (ResultSet watchrs = watchps.executeQuery()) {
+                        while (watchrs.next()) {
+                            watched.add(watchrs.getString("bv"));
+                            watchTimes.add(watchrs.getDouble("watch_time"));
+                        }
+                    }
+                    // the other viewers of their videos are forgotten with the videos
+                    viewerps.executeUpdate();
+                    danmulikeps.executeUpdate();
+                    try (ResultSet danmurs = danmups.executeQuery()) {
+                        while (danmurs.next()) {
+                            commented.add(danmurs.getString("bv"));
+                            danmuTimes.add(danmurs.getFloat("time"));
+                        }
+                    }
+                    videodanmups.executeUpdate();
+                    try (ResultSet interactionrs = interactionps.executeQuery()) {
+                        while (interactionrs.next()) {
+                            touched.add(interactionrs.getString("bv"));
+                        }
+                    }
+                    try (ResultSet videors = videops.executeQuery()) {
+                        while (videors.next()) {
+                            owned.add(videors.getString("bv"));
+                        }
+                    }
+                    userps.executeUpdate();
+                    conn.commit();
+                    watchStats.removeWatches(change, mid, watched, watchTimes);
+                    danmuHistograms.removeDanmus(danmuChange, mid, commented, danmuTimes);
+                    coWatchIndex.removeVideos(owned);
+                    coWatchIndex.removeUser(mid);
+                    // marked after the commit, so a refresh run that missed the deletes keeps the rows dirty
+                    neighborTable.markDeleted(owned);
+                    neighborTable.markChanged(watched);
+                    // their videos leave the results, and cached pages may hold them
+                    searchIndex.refresh(owned);
+                    searchCache.invalidate();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+                Authenticate.principals().invalidate(mid, null, null);
+                touched.addAll(owned);
+                touched.addAll(watched);
+                refreshCoordinator.markDirty(touched);
+                // the danmu average of the videos they commented on is scored there
+                rankedSnapshot.markChanged(commented);
+                for (String bv : owned) {
+                    watchStats.removeVideo(bv);
+                    danmuHistograms.removeVideo(bv);
+                }
 
                 log.info("Successfully delete user: " + mid);
                 return true;
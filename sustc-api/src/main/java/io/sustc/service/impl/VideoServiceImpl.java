@@ -5,15 +5,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import javax.crypto.Mac;
 import javax.sql.DataSource;
 import java.sql.Connection;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -21,6 +19,17 @@ import io.sustc.dto.AuthInfo;
 import io.sustc.dto.PostVideoReq;
 import io.sustc.dto.UserRecord.Identity;
 import io.sustc.service.VideoService;
+import io.sustc.service.impl.Recommend.CoWatchIndex;
+import io.sustc.service.impl.Recommend.NeighborTable;
+import io.sustc.service.impl.Search.KeywordMatcher;
+import io.sustc.service.impl.Search.SearchCache;
+import io.sustc.service.impl.Search.SearchIndex;
+import io.sustc.service.impl.Search.SearchMode;
+import io.sustc.service.impl.Search.TrgmSearch;
+import io.sustc.service.impl.Tools.DanmuHistograms;
+import io.sustc.service.impl.Tools.RefreshCoordinator;
+import io.sustc.service.impl.Tools.TopK;
+import io.sustc.service.impl.Tools.WatchStats;
 import io.sustc.service.impl.Tools.Authenticate;
 import lombok.extern.slf4j.Slf4j;
 
@@ -32,6 +41,30 @@ public class VideoServiceImpl implements VideoService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private RefreshCoordinator refreshCoordinator;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private WatchStats watchStats;
+
+    @Autowired
+    private DanmuHistograms danmuHistograms;
+
+    @Autowired
+    private CoWatchIndex coWatchIndex;
+
+    @Autowired
+    private NeighborTable neighborTable;
+
+    @Autowired
+    private SearchCache searchCache;
+
+    @Value("${sustc.search.mode:INDEX}")
+    private SearchMode searchMode;
+
     @Override
     public String postVideo(AuthInfo auth, PostVideoReq req) {
         try (Connection conn = dataSource.getConnection();) {
@@ -53,7 +86,9 @@ public class VideoServiceImpl implements VideoService {
                 ps.setBoolean(7, false);
                 ps.executeUpdate();
                 log.info("Successfully post video: {}", bv);
-                Global.need_to_update = true;
+                refreshCoordinator.markDirty(bv);
+                searchIndex.refresh(bv);
+                searchCache.invalidate();
                 return bv;
             }
         } catch (SQLException e) {
@@ -101,8 +136,14 @@ public class VideoServiceImpl implements VideoService {
                 ps.setString(1, bv);
                 ps.executeUpdate();
                 log.info("Successfully delete video: {}", bv);
-                Global.need_to_update = true;
                 conn.commit();
+                refreshCoordinator.markDirty(bv);
+                searchIndex.refresh(bv);
+                watchStats.removeVideo(bv);
+                danmuHistograms.removeVideo(bv);
+                coWatchIndex.removeVideo(bv);
+                neighborTable.markDeleted(Collections.singletonList(bv));
+                searchCache.invalidate();
                 return true;
             } else {
                 log.error("Delete video failed: permission denied: ownermid is {} and authmid is {}",
@@ -159,6 +200,10 @@ public class VideoServiceImpl implements VideoService {
                     
                     ps.executeUpdate();
                     log.info("Successfully update video: {}", bv);
+                    // the duration feeds avg_finish
+                    refreshCoordinator.markDirty(bv);
+                    searchIndex.refresh(bv);
+                    searchCache.invalidate();
                     return need_to_review;
 
                 } catch (SQLException e) {
@@ -189,78 +234,87 @@ public class VideoServiceImpl implements VideoService {
 
             auth.setMid(Authenticate.getMid(auth, conn));
             String[] keywordArray = keywords.split("\\s+");
+            boolean includeHidden = identity == Identity.SUPERUSER;
 
-            String sql = "SELECT v.bv, v.title, v.description, u.name as ownerName "
-                       + "FROM videos v "
-                       + "JOIN users u ON v.ownermid = u.mid";
-            
-            if(identity != Identity.SUPERUSER) {
-                sql += " WHERE v.ispublic = true";
-            }
-            
-
-            Map<String, Integer> countMap = new HashMap<>();
-            Map<String, Integer> viewMap = new HashMap<>();
-
-            for (String keyword : keywordArray) {
-                try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                    ResultSet rs = ps.executeQuery();
-                    while (rs.next()) {
-                        String bv = rs.getString("bv");
-                        String ownerName = rs.getString("ownerName");
-                        int matches = countMatches(rs, keyword, ownerName);
-                        if (matches > 0) {
-                            int currentCount = countMap.getOrDefault(bv, 0);
-                            countMap.put(bv, currentCount + matches);
-                            viewMap.putIfAbsent(bv, getViewCount(bv, conn));
-                        }
-                    }
+            if (searchMode == SearchMode.TRGM) {
+                if (pageNum <= 0 || pageSize <= 0) {
+                    log.error("Invalid pagination parameters");
+                    return Collections.emptyList();
                 }
+                return TrgmSearch.search(keywordArray, includeHidden, pageSize, pageNum, conn);
             }
 
-            List<String> sortedBvs = sortResults(countMap, viewMap);
-            return paginateResults(sortedBvs, pageSize, pageNum);
+            String cacheKey = SearchCache.key(keywordArray, includeHidden);
+            long epoch = searchCache.epoch();
+            List<String> ranked = searchCache.get(cacheKey);
+            if (ranked != null) {
+                return paginateResults(ranked, pageSize, pageNum);
+            }
+
+            Map<String, Integer> countMap = searchMode == SearchMode.SCAN
+                    ? scanMatches(keywordArray, includeHidden, conn)
+                    : searchIndex.search(keywordArray, includeHidden);
+            Map<String, Integer> viewMap = watchStats.viewCounts(countMap.keySet());
+
+            if (!searchCache.isEnabled()) {
+                return rankResults(countMap, viewMap, pageSize, pageNum);
+            }
+            // rank everything once, later pages of the same query come from the cache
+            ranked = rankResults(countMap, viewMap, Math.max(countMap.size(), 1), 1);
+            searchCache.put(cacheKey, epoch, ranked);
+            return paginateResults(ranked, pageSize, pageNum);
         } catch (SQLException e) {
             log.error("Search video failed: SQL exception", e);
             return null;
         }
     }
 
-    private int countMatches(ResultSet rs, String keyword, String ownerName) throws SQLException {
-        int matches = 0;
-        Pattern pattern = Pattern.compile(Pattern.quote(keyword), Pattern.CASE_INSENSITIVE);
+    /**
+     * Matches of every keyword, counted by reading every visible video once.
+     */
+    private Map<String, Integer> scanMatches(String[] keywordArray, boolean includeHidden, Connection conn)
+            throws SQLException {
+        String sql = "SELECT v.bv, v.title, v.description, u.name as ownerName "
+                   + "FROM videos v "
+                   + "JOIN users u ON v.ownermid = u.mid";
 
-        matches += findMatches(pattern, rs.getString("title"));
-        matches += findMatches(pattern, rs.getString("description"));
-        if (ownerName != null) {
-            matches += findMatches(pattern, ownerName);
+        if (!includeHidden) {
+            sql += " WHERE v.ispublic = true";
         }
 
-        return matches;
+        KeywordMatcher matcher = new KeywordMatcher(keywordArray);
+        Map<String, Integer> countMap = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                int matches = matcher.count(rs.getString("title")) + matcher.count(rs.getString("description"))
+                        + matcher.count(rs.getString("ownerName"));
+                if (matches > 0) {
+                    countMap.put(rs.getString("bv"), matches);
+                }
+            }
+        }
+        return countMap;
     }
 
-    private int findMatches(Pattern pattern, String text) {
-        if(text == null) {
-            return 0;
+    /**
+     * One page of the matches by count and then views, selected without sorting
+     * the other pages.
+     */
+    private List<String> rankResults(Map<String, Integer> countMap, Map<String, Integer> viewMap, int pageSize,
+            int pageNum) {
+        long start = (long) (pageNum - 1) * pageSize;
+        if (start < 0 || start > countMap.size() || pageSize <= 0) {
+            log.error("Invalid pagination parameters");
+            return Collections.emptyList();
         }
-        Matcher matcher = pattern.matcher(text);
-        int matches = 0;
-        while (matcher.find()) {
-            matches++;
+        List<String> bvs = new ArrayList<>(countMap.size());
+        long[] scores = new long[countMap.size()];
+        for (Map.Entry<String, Integer> entry : countMap.entrySet()) {
+            scores[bvs.size()] = TopK.score(entry.getValue(), viewMap.get(entry.getKey()));
+            bvs.add(entry.getKey());
         }
-        return matches;
-    }
-
-    private List<String> sortResults(Map<String, Integer> countMap, Map<String, Integer> viewMap) {
-        return countMap.entrySet().stream()
-                .sorted((entry1, entry2) -> {
-                    int countCompare = entry2.getValue().compareTo(entry1.getValue());
-                    if (countCompare != 0)
-                        return countCompare;
-                    return viewMap.get(entry2.getKey()).compareTo(viewMap.get(entry1.getKey()));
-                })
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+        return TopK.page(bvs, scores, pageSize, pageNum);
     }
 
     private List<String> paginateResults(List<String> sortedBvs, int pageSize, int pageNum) {
@@ -276,32 +330,24 @@ public class VideoServiceImpl implements VideoService {
     @Override
     public double getAverageViewRate(String bv) {
         try (Connection conn = dataSource.getConnection();) {
-            if (!checkVideoExists(bv, conn)) {
-                log.error("Get average view rate failed: bv not found");
-                return -1;
-            }
-            String sql = "SELECT * FROM user_video_watch WHERE bv = ?;";
+            String sql = "SELECT duration FROM videos WHERE bv = ?;";
             PreparedStatement ps = conn.prepareStatement(sql);
             ps.setString(1, bv);
             ResultSet rs = ps.executeQuery();
-            int count = 0;
-            double sum = 0;
-            while (rs.next()) {
-                count++;
-                sum += rs.getDouble("watch_time");
-            }
-            if (count == 0) {
+            if (!rs.next()) {
                 log.error("Get average view rate failed: bv not found");
                 return -1;
             }
-            sql = "SELECT * FROM videos WHERE bv = ?;";
-            ps = conn.prepareStatement(sql);
-            ps.setString(1, bv);
-            rs = ps.executeQuery();
-            rs.next();
             double duration = rs.getDouble("duration");
-            log.info("Successfully get average view rate: {}", sum / (duration * count));
-            return sum / (duration * count);
+            // count and total watch time are kept per video, no need to read the watches
+            WatchStats.Aggregate watches = watchStats.get(bv);
+            if (watches == null) {
+                log.error("Get average view rate failed: bv not found");
+                return -1;
+            }
+            double rate = watches.getWatchTime() / (duration * watches.getCount());
+            log.info("Successfully get average view rate: {}", rate);
+            return rate;
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -312,31 +358,18 @@ public class VideoServiceImpl implements VideoService {
     public Set<Integer> getHotspot(String bv) {
         try (Connection conn = dataSource.getConnection();) {
 
-            if (!checkVideoExists(bv, conn)) {
-                log.error("Get hotspot failed: bv not found");
-                return null;
-            }
-
             String video = "SELECT duration FROM videos WHERE bv = ?;";
             PreparedStatement videops = conn.prepareStatement(video);
             videops.setString(1, bv);
             ResultSet videors = videops.executeQuery();
-            videors.next();
-            int duration = (int) videors.getFloat("duration");
-
-            String danmu = "SELECT time FROM danmus WHERE bv = ?;";
-            PreparedStatement danmups = conn.prepareStatement(danmu);
-            danmups.setString(1, bv);
-            ArrayList<Integer> Scores = new ArrayList<>(duration / 10 + 1);
-            for (int i = 0; i < duration / 10 + 1; i++) {
-                Scores.add(0);
+            if (!videors.next()) {
+                log.error("Get hotspot failed: bv not found");
+                return null;
             }
-            ResultSet danmurs = danmups.executeQuery();
+            int duration = (int) videors.getFloat("duration");
 
-            while (danmurs.next()) {
-                Float time = danmurs.getFloat("time");
-                Scores.set((int) (time / 10), Scores.get((int) (time / 10)) + 1);
-            }
+            // danmus per 10-second bucket, kept up to date in memory
+            int[] Scores = danmuHistograms.histogram(bv, duration / DanmuHistograms.BUCKET_SECONDS + 1);
             // find the max value in Scores
             int maxScore = 0;
             boolean allSameScore = true;
@@ -354,8 +387,8 @@ public class VideoServiceImpl implements VideoService {
             }
 
             Set<Integer> result = new HashSet<>();
-            for (int i = 0; i < Scores.size(); i++) {
-                if (Scores.get(i) == maxScore) {
+            for (int i = 0; i < Scores.length; i++) {
+                if (Scores[i] == maxScore) {
                     result.add(i);
                 }
             }
@@ -409,6 +442,8 @@ public class VideoServiceImpl implements VideoService {
             updateps.setString(1, bv);
             updateps.executeUpdate();
             log.info("Successfully review video: {}", bv);
+            searchIndex.refresh(bv);
+            searchCache.invalidate();
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -474,7 +509,7 @@ public class VideoServiceImpl implements VideoService {
                 ps.executeUpdate();
             }
             log.info("Successfully coin video: {}", bv);
-            Global.need_to_update = true;
+            refreshCoordinator.markDirty(bv);
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -506,10 +541,10 @@ public class VideoServiceImpl implements VideoService {
             // }
 
             Boolean isLiked = getUserVideoInteractionStatus(auth, bv, "is_liked", conn);
-            Global.need_to_update = true;
+            boolean liked;
             if (isLiked != null) {
                 updateUserVideoInteraction(auth, bv, "is_liked", !isLiked, conn);
-                return !isLiked;
+                liked = !isLiked;
             } else {
                 String sql = "INSERT INTO user_video_interaction (mid, bv, is_favorited, is_coined, is_liked) VALUES (?, ?, ?, ?, ?);";
                 PreparedStatement ps = conn.prepareStatement(sql);
@@ -519,8 +554,10 @@ public class VideoServiceImpl implements VideoService {
                 ps.setBoolean(4, false);
                 ps.setBoolean(5, true);
                 ps.executeUpdate();
-                return true;
+                liked = true;
             }
+            refreshCoordinator.markDirty(bv);
+            return liked;
 
         } catch (SQLException e) {
             e.printStackTrace();
@@ -549,13 +586,13 @@ public class VideoServiceImpl implements VideoService {
             // log.error("Collect video failed: user has not watched the video");
             // return false;
             // }
-            Global.need_to_update = true;
             Boolean isFavorited = getUserVideoInteractionStatus(auth, bv, "is_favorited", conn);
+            boolean favorited;
             if (isFavorited != null) {
                 updateUserVideoInteraction(auth, bv, "is_favorited", !isFavorited, conn);
                 // log.info("Successfully change collect video status: {} {} {}", auth.getMid(),
                 // bv, !isFavorited);
-                return !isFavorited;
+                favorited = !isFavorited;
             } else {
                 String sql = "INSERT INTO user_video_interaction (mid, bv, is_favorited, is_coined, is_liked) VALUES (?, ?, ?, ?, ?);";
                 PreparedStatement ps = conn.prepareStatement(sql);
@@ -566,8 +603,10 @@ public class VideoServiceImpl implements VideoService {
                 ps.setBoolean(5, false);
                 ps.executeUpdate();
                 // log.info("Successfully collect video: {}", bv);
-                return true;
+                favorited = true;
             }
+            refreshCoordinator.markDirty(bv);
+            return favorited;
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -664,18 +703,6 @@ public class VideoServiceImpl implements VideoService {
     // }
     // }
 
-    private int getViewCount(String bv, Connection conn) throws SQLException {
-        String sql = "SELECT COUNT(mid) as view_count FROM user_video_watch WHERE bv = ?";
-        PreparedStatement ps = conn.prepareStatement(sql);
-        ps.setString(1, bv);
-        try (ResultSet rs = ps.executeQuery()) {
-            if (rs.next()) {
-                return rs.getInt("view_count");
-            }
-            return 0;
-        }
-    }
-
     // private boolean isUserWatched (AuthInfo auth, String bv, Connection conn)
     // throws SQLException {
     // String sql = "SELECT * FROM user_video_watch WHERE bv = ? AND mid = ?;";
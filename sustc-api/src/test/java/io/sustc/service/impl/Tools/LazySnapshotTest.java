@@ -0,0 +1,120 @@
+package io.sustc.service.impl.Tools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class LazySnapshotTest {
+    /**
+     * Committed row ids, and the ones the last load's snapshot saw. The snapshot
+     * is taken by the first statement of the load, as in REPEATABLE READ.
+     */
+    private final Set<Long> rows = new HashSet<>();
+    private volatile Set<Long> snapshot;
+    private final CountDownLatch snapshotTaken = new CountDownLatch(1);
+
+    private final ExecutorService pool = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void doesNotCountTwiceAChangeCommittedBeforeTheSnapshot() throws Exception {
+        LazySnapshot<AtomicInteger> counter = new LazySnapshot<>(dataSource(),
+                conn -> new AtomicInteger(snapshot.size()));
+        LazySnapshot.Change change = counter.begin();
+        insert(1);
+
+        Future<Integer> load = pool.submit(() -> counter.read(AtomicInteger::get));
+        snapshotTaken.await(5, TimeUnit.SECONDS);
+        // applied after the load's snapshot already holds the row
+        counter.apply(change, AtomicInteger::incrementAndGet, conn -> snapshot.contains(1L));
+
+        assertEquals(1, load.get(5, TimeUnit.SECONDS));
+        assertEquals(1, counter.read(AtomicInteger::get));
+    }
+
+    @Test
+    void replaysAChangeCommittedAfterTheSnapshot() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch changed = new CountDownLatch(1);
+        LazySnapshot<AtomicInteger> counter = new LazySnapshot<>(dataSource(), conn -> {
+            loading.countDown();
+            await(changed);
+            return new AtomicInteger(snapshot.size());
+        });
+        insert(1);
+
+        Future<Integer> load = pool.submit(() -> counter.read(AtomicInteger::get));
+        loading.await(5, TimeUnit.SECONDS);
+        try (LazySnapshot.Change change = counter.begin()) {
+            insert(2);
+            counter.apply(change, AtomicInteger::incrementAndGet, conn -> snapshot.contains(2L));
+        }
+        changed.countDown();
+
+        assertEquals(2, load.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void abandonedChangeIsNotApplied() throws Exception {
+        LazySnapshot<AtomicInteger> counter = new LazySnapshot<>(dataSource(),
+                conn -> new AtomicInteger(snapshot.size()));
+        assertEquals(0, counter.read(AtomicInteger::get));
+        try (LazySnapshot.Change change = counter.begin()) {
+            // the write failed, nothing to apply
+        }
+        counter.update(AtomicInteger::incrementAndGet);
+        assertEquals(1, counter.read(AtomicInteger::get));
+    }
+
+    private synchronized void insert(long id) {
+        rows.add(id);
+    }
+
+    private synchronized Set<Long> takeSnapshot() {
+        return new HashSet<>(rows);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private DataSource dataSource() {
+        Statement statement = (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Statement.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("execute")) {
+                        snapshot = takeSnapshot();
+                        snapshotTaken.countDown();
+                        return true;
+                    }
+                    return null;
+                });
+        Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connection.class },
+                (proxy, method, args) -> method.getName().equals("createStatement") ? statement : null);
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+                (proxy, method, args) -> connection);
+    }
+}
@@ -0,0 +1,72 @@
+package io.sustc.service.impl.Uploaders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.LongStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.sustc.dto.VideoRecord;
+
+class InteractionMergerTest {
+
+    @Test
+    void mergesOverlappingLists() throws SQLException {
+        InteractionMerger merger = new InteractionMerger();
+        Map<Long, Integer> rows = merge(merger, video(new long[] { 1, 2, 3 }, new long[] { 2, 4 }, new long[] { 3, 4 }));
+
+        Map<Long, Integer> expected = new TreeMap<>();
+        expected.put(1L, InteractionMerger.LIKED);
+        expected.put(2L, InteractionMerger.LIKED | InteractionMerger.COINED);
+        expected.put(3L, InteractionMerger.LIKED | InteractionMerger.FAVORITED);
+        expected.put(4L, InteractionMerger.COINED | InteractionMerger.FAVORITED);
+        assertEquals(expected, rows);
+    }
+
+    @Test
+    void mergesLargerVideoAfterSmallerOne() throws SQLException {
+        InteractionMerger merger = new InteractionMerger();
+        // 40 entries grow the table to 128 slots, 60 then fit without growing it again
+        assertEquals(40, merge(merger, video(range(0, 40), new long[0], new long[0])).size());
+        Map<Long, Integer> rows = merge(merger, video(range(100, 160), new long[0], new long[0]));
+
+        assertEquals(60, rows.size());
+        for (long mid = 100; mid < 160; mid++) {
+            assertEquals(InteractionMerger.LIKED, rows.get(mid));
+        }
+    }
+
+    @Test
+    void forgetsPreviousVideo() throws SQLException {
+        InteractionMerger merger = new InteractionMerger();
+        merge(merger, video(new long[] { 1, 2 }, new long[] { 1 }, new long[0]));
+        Map<Long, Integer> rows = merge(merger, video(new long[0], new long[] { 2 }, new long[] { 3 }));
+
+        Map<Long, Integer> expected = new TreeMap<>();
+        expected.put(2L, InteractionMerger.COINED);
+        expected.put(3L, InteractionMerger.FAVORITED);
+        assertEquals(expected, rows);
+    }
+
+    private static Map<Long, Integer> merge(InteractionMerger merger, VideoRecord video) throws SQLException {
+        Map<Long, Integer> rows = new TreeMap<>();
+        int emitted = merger.merge(video, (mid, flags) -> assertEquals(null, rows.put(mid, flags)));
+        assertEquals(rows.size(), emitted);
+        return rows;
+    }
+
+    private static VideoRecord video(long[] like, long[] coin, long[] favorite) {
+        VideoRecord video = new VideoRecord();
+        video.setLike(like);
+        video.setCoin(coin);
+        video.setFavorite(favorite);
+        return video;
+    }
+
+    private static long[] range(long from, long to) {
+        return LongStream.range(from, to).toArray();
+    }
+}
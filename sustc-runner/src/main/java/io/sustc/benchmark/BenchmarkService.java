@@ -10,6 +10,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -73,6 +74,43 @@ public class BenchmarkService {
         return new BenchmarkResult(endTime - startTime);
     }
 
+    /**
+     * Splits the import files into chunked files for {@link #importDataStreaming()}.
+     */
+    public void chunkImportData(int chunkSize) {
+        for (val name : new String[]{
+                BenchmarkConstants.DANMU_RECORDS, BenchmarkConstants.USER_RECORDS, BenchmarkConstants.VIDEO_RECORDS}) {
+            val source = Paths.get(config.getDataPath(), BenchmarkConstants.IMPORT_DATA, name);
+            ChunkedRecordReader.convert(fury, source, chunkedPath(name), chunkSize);
+        }
+    }
+
+    /**
+     * Imports data from the chunked files through the streaming entry point,
+     * so the records are never fully materialized.
+     * Unlike {@link #importData()}, the measured time includes deserialization.
+     */
+    @SneakyThrows
+    public BenchmarkResult importDataStreaming() {
+        try (ChunkedRecordReader<DanmuRecord> danmuRecords = new ChunkedRecordReader<>(fury, chunkedPath(BenchmarkConstants.DANMU_RECORDS));
+             ChunkedRecordReader<UserRecord> userRecords = new ChunkedRecordReader<>(fury, chunkedPath(BenchmarkConstants.USER_RECORDS));
+             ChunkedRecordReader<VideoRecord> videoRecords = new ChunkedRecordReader<>(fury, chunkedPath(BenchmarkConstants.VIDEO_RECORDS))) {
+            val startTime = System.currentTimeMillis();
+            try {
+                databaseService.importData(danmuRecords, userRecords, videoRecords);
+            } catch (Exception e) {
+                log.error("Exception encountered during importing data, you may early stop this run", e);
+            }
+            val endTime = System.currentTimeMillis();
+
+            return new BenchmarkResult(endTime - startTime);
+        }
+    }
+
+    private Path chunkedPath(String name) {
+        return Paths.get(config.getDataPath(), BenchmarkConstants.IMPORT_DATA, name + ChunkedRecordReader.SUFFIX);
+    }
+
     @BenchmarkStep(order = 2, description = "Test VideoService#searchVideo(AuthInfo, String, int, int)")
     public BenchmarkResult videoSearch1() {
         List<Map.Entry<Object[], List<String>>> cases = deserialize(BenchmarkConstants.TEST_DATA, BenchmarkConstants.VIDEO_SEARCH_1);
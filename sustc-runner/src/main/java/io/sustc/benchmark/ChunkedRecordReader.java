@@ -0,0 +1,101 @@
+package io.sustc.benchmark;
+
+import io.fury.ThreadSafeFury;
+import lombok.SneakyThrows;
+import lombok.val;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the records of a chunked import file, holding only one chunk in memory.
+ * <p>
+ * A chunked file is a sequence of {@code [int length][Fury-serialized List]} blocks,
+ * produced from a regular {@code .ser} file by {@link #convert(ThreadSafeFury, Path, Path, int)}.
+ */
+public class ChunkedRecordReader<T> implements Iterator<T>, Closeable {
+
+    public static final String SUFFIX = ".chunks";
+
+    private final ThreadSafeFury fury;
+
+    private final DataInputStream in;
+
+    private Iterator<T> chunk = Collections.emptyIterator();
+
+    private boolean eof;
+
+    public ChunkedRecordReader(ThreadSafeFury fury, Path file) throws IOException {
+        this.fury = fury;
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!chunk.hasNext() && !eof) {
+            readChunk();
+        }
+        return chunk.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        eof = true;
+        in.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readChunk() {
+        try {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                close();
+                return;
+            }
+            val bytes = new byte[length];
+            in.readFully(bytes);
+            chunk = ((List<T>) fury.deserialize(bytes)).iterator();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Rewrites a {@code .ser} file holding one serialized list as a chunked file.
+     * The source list is loaded once here, so later imports never need to.
+     */
+    @SneakyThrows
+    public static void convert(ThreadSafeFury fury, Path source, Path target, int chunkSize) {
+        val records = (List<?>) fury.deserialize(Files.readAllBytes(source));
+        try (val out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+            for (int i = 0; i < records.size(); i += chunkSize) {
+                val bytes = fury.serialize(new ArrayList<>(records.subList(i, Math.min(i + chunkSize, records.size()))));
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
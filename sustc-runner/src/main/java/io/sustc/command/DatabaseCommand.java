@@ -6,6 +6,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
 
 import java.util.List;
 
@@ -30,6 +31,17 @@ public class DatabaseCommand {
         benchmarkService.importData();
     }
 
+    @ShellMethod(key = "db chunk", value = "Split the import data into chunked files for streaming import")
+    public void chunkImportData(@ShellOption(defaultValue = "10000") int chunkSize) {
+        benchmarkService.chunkImportData(chunkSize);
+    }
+
+    @ShellMethod(key = "db import-stream", value = "Import data from chunked files, one chunk at a time")
+    public void importDataStreaming() {
+        databaseService.truncate();
+        benchmarkService.importDataStreaming();
+    }
+
     @ShellMethod(key = "db truncate", value = "Truncate tables")
     public void truncate() {
         databaseService.truncate();
@@ -0,0 +1,79 @@
+package io.sustc.command;
+
+import io.sustc.service.impl.Recommend.LshBenchmark;
+import io.sustc.service.impl.Recommend.NeighborTable;
+import io.sustc.service.impl.Recommend.RankedSnapshot;
+import io.sustc.service.impl.Search.SearchCache;
+import io.sustc.service.impl.Tools.WatchStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+@ShellComponent
+@ConditionalOnBean(WatchStats.class)
+public class MaintenanceCommand {
+
+    @Autowired
+    private WatchStats watchStats;
+
+    @Autowired
+    private NeighborTable neighborTable;
+
+    @Autowired
+    private LshBenchmark lshBenchmark;
+
+    @Autowired
+    private RankedSnapshot rankedSnapshot;
+
+    @Autowired
+    private SearchCache searchCache;
+
+    @ShellMethod(key = "check watch-stats", value = "Recompute the per-video watch aggregates and list differences")
+    public List<String> checkWatchStats() throws SQLException {
+        return watchStats.check();
+    }
+
+    @ShellMethod(key = "neighbors refresh", value = "Compute the missing and dirty rows of video_neighbors")
+    public String refreshNeighbors() throws SQLException {
+        return String.format("Computed neighbors of %d videos", neighborTable.refresh());
+    }
+
+    @ShellMethod(key = "neighbors staleness", value = "Report how stale each row of video_neighbors is")
+    public List<String> neighborStaleness() throws SQLException {
+        return neighborTable.staleness();
+    }
+
+    @ShellMethod(key = "lsh benchmark", value = "Compare MinHash recall and latency with the exact next-video query")
+    public List<String> benchmarkLsh(
+            @ShellOption(defaultValue = "8,16,32") String bands,
+            @ShellOption(defaultValue = "2,4,8") String rows,
+            @ShellOption(defaultValue = "50") int rerank,
+            @ShellOption(defaultValue = "200") int samples
+    ) throws SQLException {
+        return lshBenchmark.run(parse(bands), parse(rows), rerank, samples);
+    }
+
+    @ShellMethod(key = "stats general-ranking", value = "Show the size, build time and age of the general ranking")
+    public String generalRankingStats() {
+        return String.format("%d videos, last built in %d ms, %d ms old, %d rebuilds, %d patches",
+                rankedSnapshot.size(), rankedSnapshot.getBuildMillis(), rankedSnapshot.getAgeMillis(),
+                rankedSnapshot.getRebuilds(), rankedSnapshot.getPatches());
+    }
+
+    @ShellMethod(key = "stats search-cache", value = "Show the size and hit rate of the searchVideo ranking cache")
+    public String searchCacheStats() {
+        return String.format("%d rankings holding %d bvs, hit rate %.1f%% (%d hits, %d misses), %d evictions",
+                searchCache.size(), searchCache.getResults(), searchCache.getHitRate() * 100, searchCache.getHits(),
+                searchCache.getMisses(), searchCache.getEvictions());
+    }
+
+    private static int[] parse(String values) {
+        return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}